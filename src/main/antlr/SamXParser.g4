@@ -58,6 +58,9 @@ package net.signbit.samx.parser;
    {
       java.io.File includeFile = new java.io.File(basePath, reference);
 
+      final Object event = net.signbit.samx.events.Events.beginInclude();
+      String outcome = "cached";
+
       if (includeFile.exists())
       {
          referencePaths.put(reference, includeFile.getAbsolutePath());
@@ -71,17 +74,22 @@ package net.signbit.samx.parser;
                   includedExceptions);
 
                includedDocuments.put(includeFile.getAbsolutePath(), result);
+               outcome = "parsed";
             }
             catch (java.io.IOException ioe)
             {
                includedExceptions.put(includeFile.getAbsolutePath(), ioe);
+               outcome = "error";
             }
          }
       }
       else
       {
          includedExceptions.put(includeFile.getAbsolutePath(), new java.io.FileNotFoundException(includeFile.getAbsolutePath()));
+         outcome = "missing";
       }
+
+      net.signbit.samx.events.Events.commitInclude(event, reference, includeFile.getAbsolutePath(), outcome);
    }
 
 }
@@ -60,7 +60,7 @@ public class ConvertToHtml extends Renderer
    protected boolean performCheck(CommandLine cmd) throws FileNotFoundException
    {
       Tidy tidy = new Tidy();
-      FileInputStream fis = new FileInputStream(cmd.getOptionValue("output"));
+      FileInputStream fis = new FileInputStream(getOutputPath());
       StringWriter output = new StringWriter();
       tidy.parse(fis, output);
       final int count = tidy.getParseErrors();
@@ -16,21 +16,13 @@
 
 package net.signbit.samx;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
 import java.io.*;
-import java.util.zip.GZIPInputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
-import org.w3c.dom.Document;
-import org.xml.sax.ErrorHandler;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.SAXParseException;
 
-import com.thaiopensource.validate.ValidationDriver;
 import net.signbit.samx.visitors.RendererVisitor;
 import net.signbit.samx.visitors.XmlTextVisitor;
 
@@ -39,6 +31,9 @@ public final class ConvertToXml extends Renderer
 
    private XmlTextVisitor visitor;
 
+   private File schemaFile = null;
+   private XmlTeeChecker checker = null;
+
    public static void main(String[] args) throws IOException
    {
       ConvertToXml converter = new ConvertToXml();
@@ -66,6 +61,15 @@ public final class ConvertToXml extends Renderer
 
       Option schemaPath = new Option("s", "schema", true, "RelaxNG schema");
       options.addOption(schemaPath);
+
+      Option stylesheet = new Option("x", "xslt", true, "XSLT stylesheet to apply to the output");
+      options.addOption(stylesheet);
+
+      Option stylesheetOutput = new Option(null, "xslt-output", true, "path of the result of the stylesheet");
+      options.addOption(stylesheetOutput);
+
+      Option chunk = new Option("c", "chunk", false, "write each top-level typed block to a file of its own, next to the output");
+      options.addOption(chunk);
    }
 
    @Override
@@ -102,6 +106,26 @@ public final class ConvertToXml extends Renderer
          visitor.setTopElementVersion("5.1");
       }
 
+      if (cmd.hasOption("c"))
+      {
+         final File outputFile = new File(getOutputPath()).getAbsoluteFile();
+
+         String baseName = outputFile.getName();
+         if (baseName.lastIndexOf('.') > 0)
+         {
+            baseName = baseName.substring(0, baseName.lastIndexOf('.'));
+         }
+
+         visitor.setChunking(outputFile.getParentFile(), baseName);
+
+         if (cmd.hasOption("d"))
+         {
+            // the output is the map of the topics
+            visitor.setTopElement("map");
+            visitor.setTopElementNamespace(null);
+         }
+      }
+
       if (cmd.getOptionValue("r") != null)
       {
          visitor.setTopElement(cmd.getOptionValue("r"));
@@ -131,7 +155,7 @@ public final class ConvertToXml extends Renderer
          }
       }
 
-      final File outputFile = new File(cmd.getOptionValue("output"));
+      final File outputFile = new File(getOutputPath());
       final File outputFileParent = outputFile.getParentFile();
       schemaFile = new File(outputFileParent, "docbook.rng");
       if (schemaFile.exists())
@@ -139,7 +163,7 @@ public final class ConvertToXml extends Renderer
          return schemaFile;
       }
 
-      File inputFile = new File(cmd.getOptionValue("input"));
+      File inputFile = new File(getInputPath());
       File inputFileParent = inputFile.getParentFile();
       schemaFile = new File(inputFileParent, "docbook.rng");
       if (schemaFile.exists())
@@ -151,90 +175,127 @@ public final class ConvertToXml extends Renderer
    }
 
    @Override
-   protected boolean performCheck(CommandLine cmd) throws IOException, SAXException
+   protected Writer teeOutput(CommandLine cmd, Writer output)
    {
-      if (checkWellFormed(new InputSource(cmd.getOptionValue("output"))))
-      {
-         if (cmd.hasOption("b"))
-         {
-            final File schemaFile = findSchemaFile(cmd);
-            if (schemaFile == null)
-            {
-               System.err.println("Could not find the schema file near the input or output.");
-               System.err.println("You can download it from https://docbook.org/xml/5.1/rng/docbook.rng");
-
-               return false;
-            }
-
-            final ValidationDriver vd = new ValidationDriver();
+      schemaFile = cmd.hasOption("b") ? findSchemaFile(cmd) : null;
 
-            InputStream schemaStream = new FileInputStream(schemaFile);
-            if (schemaFile.getName().endsWith(".gz"))
-            {
-               schemaStream = new GZIPInputStream(schemaStream);
-            }
+      checker = new XmlTeeChecker(getOutputPath(), schemaFile);
 
-            vd.loadSchema(new InputSource(schemaStream));
+      // the chunks are written before the output refers to them
+      checker.setXIncludeAware(cmd.hasOption("c") && (! cmd.hasOption("d")));
 
-            final boolean isValid = vd.validate(new InputSource(cmd.getOptionValue("output")));
-
-            if (isValid)
-            {
-               System.err.println("DocBook document validated using Jing");
-            }
-            else
-            {
-               System.err.println("DocBook document failed to validate");
-            }
+      if (cmd.getOptionValue("xslt") != null)
+      {
+         if (cmd.getOptionValue("xslt-output") == null)
+         {
+            System.err.println("Please select the path of the stylesheet result with --xslt-output");
+            throw new RuntimeException("Invalid option combination");
+         }
 
-            return isValid;
+         if (cmd.getOptionValues("input").length > 1)
+         {
+            System.err.println("The stylesheet has a single result; please apply it to one input at a time");
+            throw new RuntimeException("Invalid option combination");
          }
+
+         checker.setTransform(new File(cmd.getOptionValue("xslt")), new File(cmd.getOptionValue("xslt-output")));
       }
 
-      return false;
+      return checker.tee(output);
    }
 
-   private static class SimpleErrorHandler implements ErrorHandler
+   @Override
+   protected void addDependencies(CommandLine cmd, DependencyFile dependencies)
    {
-      public void warning(SAXParseException e)
+      if (schemaFile != null)
       {
-         System.err.println(e.getMessage());
+         dependencies.addPrerequisite(schemaFile.getPath());
       }
 
-      public void error(SAXParseException e)
+      if (cmd.getOptionValue("xslt") != null)
       {
-         System.err.println(e.getMessage());
+         dependencies.addTarget(cmd.getOptionValue("xslt-output"));
+         dependencies.addPrerequisite(cmd.getOptionValue("xslt"));
       }
 
-      public void fatalError(SAXParseException e)
+      if (cmd.hasOption("c"))
       {
-         System.err.println(e.getMessage());
+         // named like the output, which the chunks are next to
+         final File outputParent = new File(getOutputPath()).getParentFile();
+
+         for (File chunkFile : visitor.getChunkFiles())
+         {
+            dependencies.addTarget(new File(outputParent, chunkFile.getName()).getPath());
+         }
+
+         if (visitor.getChunkListFile() != null)
+         {
+            dependencies.addTarget(new File(outputParent, visitor.getChunkListFile().getName()).getPath());
+         }
       }
    }
 
-   private static boolean checkWellFormed(InputSource output)
+   @Override
+   protected boolean performCheck(CommandLine cmd) throws IOException, SAXException
    {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      factory.setValidating(false);
-      factory.setNamespaceAware(true);
-
+      XmlTeeChecker.Result result;
+      final Stats.Phase waitPhase = Stats.begin("wait for check");
       try
       {
-         DocumentBuilder builder = factory.newDocumentBuilder();
+         result = checker.getResult();
+      }
+      finally
+      {
+         waitPhase.close();
+      }
 
-         builder.setErrorHandler(new SimpleErrorHandler());
+      if (! result.wellFormed)
+      {
+         System.err.println(result.fatalError.getMessage());
+         result.fatalError.printStackTrace(System.err);
+         return false;
+      }
 
-         Document document = builder.parse(output);
+      System.err.println("XML output is well-formed");
+      System.err.print(result.messages);
 
-         System.err.println("XML output is well-formed");
+      if (cmd.hasOption("c"))
+      {
+         System.err.println("Wrote " + visitor.getChunksWritten() + " of " + visitor.getChunkCount() + " chunks");
+         if (visitor.getChunksRemoved() > 0)
+         {
+            System.err.println("Removed " + visitor.getChunksRemoved() + " stale chunks");
+         }
+      }
 
-         return true;
+      if (result.transformed)
+      {
+         System.err.println("Applied " + cmd.getOptionValue("xslt") + " into " + cmd.getOptionValue("xslt-output"));
       }
-      catch (Exception ee)
+
+      if (cmd.hasOption("b"))
       {
-         ee.printStackTrace(System.err);
-         return false;
+         if (schemaFile == null)
+         {
+            System.err.println("Could not find the schema file near the input or output.");
+            System.err.println("You can download it from https://docbook.org/xml/5.1/rng/docbook.rng");
+
+            return false;
+         }
+
+         if (result.valid)
+         {
+            System.err.println("DocBook document validated using Jing");
+         }
+         else
+         {
+            System.err.println("DocBook document failed to validate");
+         }
+
+         return result.valid;
       }
+
+      return true;
    }
 
 }
@@ -0,0 +1,154 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.TreeSet;
+
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+
+/*
+ * A make rule listing the files a tool read and the files it wrote, for
+ * inclusion in a Makefile with -include, as written by gcc -MD -MP.
+ *
+ * The included documents come from the parse itself, so the includes of
+ * the includes and the ones under conditions are listed as well. Each
+ * prerequisite but the first also gets an empty rule, so make does not stop
+ * when an include is removed.
+ */
+public final class DependencyFile
+{
+   public static final String OPTION = "depend";
+
+   private final LinkedHashSet<String> targets = new LinkedHashSet<>();
+   private final LinkedHashSet<String> prerequisites = new LinkedHashSet<>();
+
+   public static void addOption(Options options)
+   {
+      Option depend = new Option(null, OPTION, true, "write the input files and the output files as a make rule to this file");
+      depend.setArgName("file");
+      options.addOption(depend);
+   }
+
+   public void addTarget(String path)
+   {
+      targets.add(path);
+   }
+
+   public void addPrerequisite(String path)
+   {
+      prerequisites.add(path);
+   }
+
+   /*
+    * the input document and all the documents it includes
+    */
+   public void addDocument(Parser.Result result)
+   {
+      addPrerequisite(result.inputFile.getPath());
+
+      // sorted, as the dictionary is not
+      for (String includedPath : new TreeSet<>(result.includedDocuments.keySet()))
+      {
+         addPrerequisite(includedPath);
+      }
+   }
+
+   public String render()
+   {
+      StringBuilder builder = new StringBuilder();
+
+      boolean first = true;
+      for (String target : targets)
+      {
+         if (! first)
+         {
+            builder.append(' ');
+         }
+         builder.append(escape(target));
+         first = false;
+      }
+
+      builder.append(':');
+
+      for (String prerequisite : prerequisites)
+      {
+         builder.append(" \\\n ");
+         builder.append(escape(prerequisite));
+      }
+
+      builder.append('\n');
+
+      first = true;
+      for (String prerequisite : prerequisites)
+      {
+         if (! first)
+         {
+            builder.append('\n');
+            builder.append(escape(prerequisite));
+            builder.append(":\n");
+         }
+         first = false;
+      }
+
+      return builder.toString();
+   }
+
+   /*
+    * the dependency file is a target of the rule as well, so a Makefile can
+    * remake it when one of the inputs changes; it is always written, for
+    * make to see it was remade
+    */
+   public void write(File file) throws IOException
+   {
+      addTarget(file.getPath());
+      Files.write(file.toPath(), render().getBytes(StandardCharsets.UTF_8));
+   }
+
+   static String escape(String path)
+   {
+      StringBuilder builder = new StringBuilder(path.length());
+
+      for (int ii = 0; ii < path.length(); ++ ii)
+      {
+         final char ch = path.charAt(ii);
+         switch (ch)
+         {
+            case ' ':
+            case '#':
+               builder.append('\\');
+               builder.append(ch);
+               break;
+
+            case '$':
+               builder.append("$$");
+               break;
+
+            default:
+               builder.append(ch);
+               break;
+         }
+      }
+
+      return builder.toString();
+   }
+}
@@ -0,0 +1,323 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import net.sourceforge.plantuml.BlockUml;
+import net.sourceforge.plantuml.ErrorUml;
+import net.sourceforge.plantuml.FileFormat;
+import net.sourceforge.plantuml.FileFormatOption;
+import net.sourceforge.plantuml.SourceStringReader;
+import net.sourceforge.plantuml.error.PSystemError;
+import net.sourceforge.plantuml.version.Version;
+
+import net.signbit.samx.events.Events;
+import net.signbit.samx.visitors.EmbeddedCodeVisitor;
+
+/*
+ * Renders the extracted PlantUML and ditaa blocks into images with the
+ * PlantUML library, in process, instead of starting a JVM per diagram.
+ *
+ * The diagrams are rendered in parallel on the common fork-join pool. Each
+ * image is kept in the cache directory under the SHA-256 of the diagram
+ * source, the image format and the PlantUML version, so a diagram is only
+ * rendered again when one of them changes; the image next to the document
+ * is then only written if it differs, and its timestamp stays put for make.
+ */
+public final class DiagramRenderer
+{
+   public static final class Diagram
+   {
+      private final EmbeddedCodeVisitor.CodeFile codeFile;
+      private final File imageFile;
+
+      private boolean cached = false;
+      private boolean written = false;
+      private int byteCount = 0;
+      private String hash = null;
+      private String error = null;
+      private IOException exception = null;
+
+      private Diagram(EmbeddedCodeVisitor.CodeFile codeFile, File imageFile)
+      {
+         this.codeFile = codeFile;
+         this.imageFile = imageFile;
+      }
+
+      public EmbeddedCodeVisitor.CodeFile getCodeFile()
+      {
+         return codeFile;
+      }
+
+      public File getImageFile()
+      {
+         return imageFile;
+      }
+
+      /*
+       * true if the image came from the cache instead of being rendered
+       */
+      public boolean isCached()
+      {
+         return cached;
+      }
+
+      /*
+       * false if the image file already held the image
+       */
+      public boolean isWritten()
+      {
+         return written;
+      }
+
+      public int getByteCount()
+      {
+         return byteCount;
+      }
+
+      /*
+       * the diagram errors reported by PlantUML, or null
+       */
+      public String getError()
+      {
+         return error;
+      }
+
+      public IOException getException()
+      {
+         return exception;
+      }
+   }
+
+   private final File cacheDir;
+
+   public DiagramRenderer(File cacheDir)
+   {
+      this.cacheDir = cacheDir;
+   }
+
+   /*
+    * the PlantUML diagram type of a code block language, or null if the
+    * block is not a diagram
+    */
+   static String getDiagramType(String language)
+   {
+      switch (language)
+      {
+         case "plantuml":
+         case "puml":
+            return "uml";
+
+         case "ditaa":
+            return "ditaa";
+
+         default:
+            return null;
+      }
+   }
+
+   public static boolean isDiagram(EmbeddedCodeVisitor.CodeFile codeFile)
+   {
+      return getDiagramType(codeFile.getLanguage()) != null;
+   }
+
+   /*
+    * renders the diagrams among the code files; returns them in document
+    * order
+    */
+   public List<Diagram> render(List<EmbeddedCodeVisitor.CodeFile> codeFiles) throws IOException
+   {
+      Files.createDirectories(cacheDir.toPath());
+
+      // PlantUML draws with AWT
+      System.setProperty("java.awt.headless", "true");
+
+      return codeFiles.stream()
+            .filter(DiagramRenderer::isDiagram)
+            .map(codeFile -> new Diagram(codeFile, getImageFile(codeFile)))
+            .collect(Collectors.toList())
+            .parallelStream()
+            .map(this::renderDiagram)
+            .collect(Collectors.toList());
+   }
+
+   /*
+    * the image inserted with the block, or one named after the code file
+    */
+   private static File getImageFile(EmbeddedCodeVisitor.CodeFile codeFile)
+   {
+      if (codeFile.getImageFile() != null)
+      {
+         return codeFile.getImageFile();
+      }
+
+      final String name = codeFile.getFile().getName();
+      return new File(codeFile.getFile().getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".png");
+   }
+
+   private static FileFormat getFileFormat(File imageFile)
+   {
+      return imageFile.getName().toLowerCase().endsWith(".svg") ? FileFormat.SVG : FileFormat.PNG;
+   }
+
+   private Diagram renderDiagram(Diagram diagram)
+   {
+      final Object event = Events.beginDiagramRender();
+
+      final String language = diagram.codeFile.getLanguage();
+      final String code = diagram.codeFile.getCode();
+
+      // the blocks usually hold just the diagram, without the markers
+      final boolean enclosed = code.trim().startsWith("@start");
+      String source = code;
+      if (! enclosed)
+      {
+         final String type = getDiagramType(language);
+         source = "@start" + type + "\n" + code + "\n@end" + type + "\n";
+      }
+
+      final FileFormat fileFormat = getFileFormat(diagram.imageFile);
+
+      final String key = OutputFiles.sha256((Version.versionString() + "\n" + fileFormat.name() + "\n" + source).getBytes(StandardCharsets.UTF_8));
+      final File cacheFile = new File(cacheDir, key + fileFormat.getFileSuffix());
+
+      String outcome = "error";
+
+      try
+      {
+         byte[] image = null;
+
+         if (cacheFile.isFile())
+         {
+            image = Files.readAllBytes(cacheFile.toPath());
+            diagram.cached = true;
+         }
+         else
+         {
+            SourceStringReader reader = new SourceStringReader(source);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            reader.outputImage(output, new FileFormatOption(fileFormat));
+
+            diagram.error = getErrors(reader.getBlocks(), enclosed ? 1 : 0);
+            if (diagram.error == null)
+            {
+               image = output.toByteArray();
+               writeCacheFile(cacheFile, image);
+            }
+         }
+
+         if (image != null)
+         {
+            diagram.byteCount = image.length;
+            diagram.written = OutputFiles.writeIfChanged(diagram.imageFile, image);
+            diagram.hash = OutputFiles.sha256(image);
+            outcome = diagram.cached ? "cached" : "rendered";
+         }
+      }
+      catch (IOException ioe)
+      {
+         diagram.exception = ioe;
+      }
+
+      Events.commitDiagramRender(event, diagram.imageFile.getPath(), language, outcome, diagram.byteCount);
+
+      return diagram;
+   }
+
+   /*
+    * the errors of the diagram, with the lines numbered as in the code file,
+    * or null if it rendered
+    */
+   private static String getErrors(List<BlockUml> blocks, int lineOffset)
+   {
+      if (blocks.isEmpty())
+      {
+         return "no diagram found";
+      }
+
+      StringBuilder builder = new StringBuilder();
+
+      for (BlockUml block : blocks)
+      {
+         if (block.getDiagram() instanceof PSystemError)
+         {
+            for (ErrorUml error : ((PSystemError) block.getDiagram()).getErrorsUml())
+            {
+               if (builder.length() > 0)
+               {
+                  builder.append("; ");
+               }
+               builder.append("line ");
+               builder.append(error.getLineLocation().getPosition() + lineOffset);
+               builder.append(": ");
+               builder.append(error.getError());
+            }
+         }
+      }
+
+      return (builder.length() > 0) ? builder.toString() : null;
+   }
+
+   /*
+    * another process may render the same diagram at the same time, so the
+    * image is moved into place whole
+    */
+   private void writeCacheFile(File cacheFile, byte[] image) throws IOException
+   {
+      File temporaryFile = File.createTempFile("diagram", ".tmp", cacheDir);
+
+      try
+      {
+         Files.write(temporaryFile.toPath(), image);
+         Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      finally
+      {
+         Files.deleteIfExists(temporaryFile.toPath());
+      }
+   }
+
+   /*
+    * the hash and path of each image, one per line, in the format of sha256sum
+    */
+   public static String getManifest(List<Diagram> diagrams)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      for (Diagram diagram : diagrams)
+      {
+         if (diagram.hash != null)
+         {
+            builder.append(diagram.hash);
+            builder.append("  ");
+            builder.append(diagram.imageFile.getPath());
+            builder.append('\n');
+         }
+      }
+
+      return builder.toString();
+   }
+}
@@ -0,0 +1,215 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * Writer that fills one buffer while a background thread writes the other
+ * one to the underlying writer, so rendering does not wait on the output.
+ *
+ * Buffers are written in order, one at a time. An error in the background
+ * thread is thrown from the next call to write, flush or close.
+ *
+ * Not thread safe; meant to be used by one renderer.
+ */
+public class DoubleBufferedWriter extends Writer
+{
+   public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+
+   private final Writer out;
+   private final ExecutorService executor;
+
+   private char[] current;
+   private char[] spare;
+   private int count = 0;
+
+   private Future<?> pending = null;
+   private boolean closed = false;
+
+   public DoubleBufferedWriter(Writer out)
+   {
+      this(out, DEFAULT_BUFFER_SIZE);
+   }
+
+   public DoubleBufferedWriter(Writer out, int bufferSize)
+   {
+      this.out = out;
+
+      current = new char[bufferSize];
+      spare = new char[bufferSize];
+
+      executor = Executors.newSingleThreadExecutor(runnable ->
+      {
+         Thread thread = new Thread(runnable, "samx-output");
+         thread.setDaemon(true);
+         return thread;
+      });
+   }
+
+   private void waitForPending() throws IOException
+   {
+      if (pending == null)
+      {
+         return;
+      }
+
+      final Future<?> written = pending;
+      pending = null;
+
+      try
+      {
+         written.get();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while writing output", ie);
+      }
+      catch (ExecutionException ee)
+      {
+         if (ee.getCause() instanceof IOException)
+         {
+            throw (IOException) ee.getCause();
+         }
+         throw new IOException(ee.getCause());
+      }
+   }
+
+   /*
+    * hands the filled buffer to the background thread and switches to the
+    * other one, once the background thread is done with it
+    */
+   private void handOff() throws IOException
+   {
+      waitForPending();
+
+      if (count == 0)
+      {
+         return;
+      }
+
+      final char[] filled = current;
+      final int filledCount = count;
+
+      pending = executor.submit(() ->
+      {
+         out.write(filled, 0, filledCount);
+         return null;
+      });
+
+      current = spare;
+      spare = filled;
+      count = 0;
+   }
+
+   private void ensureOpen() throws IOException
+   {
+      if (closed)
+      {
+         throw new IOException("Writer is closed");
+      }
+   }
+
+   @Override
+   public void write(int c) throws IOException
+   {
+      ensureOpen();
+
+      if (count == current.length)
+      {
+         handOff();
+      }
+      current[count++] = (char) c;
+   }
+
+   @Override
+   public void write(char[] cbuf, int off, int len) throws IOException
+   {
+      ensureOpen();
+
+      while (len > 0)
+      {
+         if (count == current.length)
+         {
+            handOff();
+         }
+
+         final int chunk = Math.min(len, current.length - count);
+         System.arraycopy(cbuf, off, current, count, chunk);
+         count += chunk;
+         off += chunk;
+         len -= chunk;
+      }
+   }
+
+   @Override
+   public void write(String str, int off, int len) throws IOException
+   {
+      ensureOpen();
+
+      while (len > 0)
+      {
+         if (count == current.length)
+         {
+            handOff();
+         }
+
+         final int chunk = Math.min(len, current.length - count);
+         str.getChars(off, off + chunk, current, count);
+         count += chunk;
+         off += chunk;
+         len -= chunk;
+      }
+   }
+
+   @Override
+   public void flush() throws IOException
+   {
+      ensureOpen();
+
+      handOff();
+      waitForPending();
+
+      out.flush();
+   }
+
+   @Override
+   public void close() throws IOException
+   {
+      if (closed)
+      {
+         return;
+      }
+
+      try
+      {
+         flush();
+      }
+      finally
+      {
+         closed = true;
+         executor.shutdown();
+         out.close();
+      }
+   }
+}
@@ -0,0 +1,151 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.cli.*;
+
+import net.signbit.samx.visitors.TableExportVisitor;
+
+public class ExportTables
+{
+   public static void main(String[] args) throws IOException
+   {
+      LargeStack.run(() -> export(args));
+   }
+
+   private static TableExportVisitor.Format getFormat(String value) throws ParseException
+   {
+      if (value == null)
+      {
+         return TableExportVisitor.Format.CSV;
+      }
+
+      for (TableExportVisitor.Format format : TableExportVisitor.Format.values())
+      {
+         if (format.getExtension().equalsIgnoreCase(value))
+         {
+            return format;
+         }
+      }
+
+      throw new ParseException("Unknown table format: " + value);
+   }
+
+   private static void export(String[] args) throws IOException
+   {
+      Options options = new Options();
+
+      Option input = new Option("i", "input", true, "input file path");
+      input.setRequired(true);
+      options.addOption(input);
+
+      Option output = new Option("o", "output", true, "output directory path");
+      output.setRequired(true);
+      options.addOption(output);
+
+      Option format = new Option("f", "format", true, "output format: csv (default), tsv or jsonl");
+      options.addOption(format);
+
+      Renderer.addVariantOptions(options);
+      Renderer.addStatsOption(options);
+
+      CommandLineParser cmdLine = new DefaultParser();
+      HelpFormatter helpFmt = new HelpFormatter();
+
+      try
+      {
+         CommandLine cmd = cmdLine.parse(options, args);
+
+         if (cmd.hasOption("stats"))
+         {
+            Stats.enable("ExportTables");
+         }
+
+         final TableExportVisitor.Format tableFormat = getFormat(cmd.getOptionValue("format"));
+
+         File outputDir = new File(cmd.getOptionValue("output"));
+         if (! outputDir.isDirectory())
+         {
+            System.err.println("Specified output path " + cmd.getOptionValue("output") + " is not a directory.");
+            System.exit(5);
+         }
+
+         Parser.Result result = Parser.parse(cmd.getOptionValue("input"));
+         if (result.errorCount > 0)
+         {
+            System.err.print("Failed to parse input file " + cmd.getOptionValue("input"));
+            System.exit(10);
+         }
+
+         TableExportVisitor visitor = new TableExportVisitor(result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens, outputDir, tableFormat);
+         visitor.setProperties(cmd.getOptionProperties("V"));
+         visitor.setTrueFlags(cmd.getOptionValues("T"));
+         visitor.setFalseFlags(cmd.getOptionValues("F"));
+
+         final Stats.Phase collectPhase = Stats.begin("collect");
+         try
+         {
+            visitor.visit(result.document);
+         }
+         finally
+         {
+            collectPhase.close();
+         }
+
+         List<TableExportVisitor.Table> tables;
+         final Stats.Phase exportPhase = Stats.begin("export");
+         try
+         {
+            tables = visitor.export();
+         }
+         finally
+         {
+            exportPhase.close();
+         }
+
+         boolean failed = false;
+         for (TableExportVisitor.Table table : tables)
+         {
+            if (table.getException() != null)
+            {
+               System.err.println("Failed to write " + table.getFile().getPath() + ": " + table.getException().getMessage());
+               failed = true;
+            }
+            else
+            {
+               System.out.println("Wrote " + table.getFile().getPath() + " (" + table.getRowCount() + " rows)");
+               Stats.count("rowsWritten", table.getRowCount());
+            }
+         }
+
+         Stats.count("tables", tables.size());
+
+         System.exit(failed ? 1 : 0);
+      }
+      catch (ParseException pe)
+      {
+         System.err.println(pe.getMessage());
+         helpFmt.printHelp("ExportTables", options);
+      }
+
+      System.exit(1);
+   }
+}
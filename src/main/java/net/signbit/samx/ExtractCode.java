@@ -18,6 +18,8 @@ package net.signbit.samx;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 
 import org.apache.commons.cli.*;
 
@@ -26,6 +28,11 @@ import net.signbit.samx.visitors.EmbeddedCodeVisitor;
 public class ExtractCode
 {
    public static void main(String[] args) throws IOException
+   {
+      LargeStack.run(() -> extract(args));
+   }
+
+   private static void extract(String[] args) throws IOException
    {
       Options options = new Options();
 
@@ -42,6 +49,21 @@ public class ExtractCode
       elements.setArgs(Option.UNLIMITED_VALUES);
       options.addOption(elements);
 
+      Option manifest = new Option("m", "manifest", true, "write the SHA-256 and path of every extracted file to this file");
+      manifest.setRequired(false);
+      options.addOption(manifest);
+
+      Option render = new Option("r", "render", false, "render the PlantUML and ditaa blocks into images");
+      render.setRequired(false);
+      options.addOption(render);
+
+      Option diagramCache = new Option(null, "diagram-cache", true, "directory keeping the rendered diagrams (default: .diagrams in the output directory)");
+      diagramCache.setRequired(false);
+      options.addOption(diagramCache);
+
+      Renderer.addStatsOption(options);
+      DependencyFile.addOption(options);
+
       CommandLineParser cmdLine = new DefaultParser();
       HelpFormatter helpFmt = new HelpFormatter();
 
@@ -49,6 +71,11 @@ public class ExtractCode
       {
          CommandLine cmd = cmdLine.parse(options, args);
 
+         if (cmd.hasOption("stats"))
+         {
+            Stats.enable("ExtractCode");
+         }
+
          Parser.Result result = Parser.parse(cmd.getOptionValue("input"));
          if (result.errorCount > 0)
          {
@@ -72,8 +99,124 @@ public class ExtractCode
          }
 
          EmbeddedCodeVisitor visitor = new EmbeddedCodeVisitor(result.tokens, outputDir, cmd.getOptionValues("elements"));
+         visitor.setIncludes(result.includedDocuments, result.referencePaths);
+
+         final Stats.Phase extractPhase = Stats.begin("extract");
+         try
+         {
+            visitor.visit(result.document);
+         }
+         finally
+         {
+            extractPhase.close();
+         }
+
+         List<EmbeddedCodeVisitor.CodeFile> codeFiles;
+         final Stats.Phase writePhase = Stats.begin("write");
+         try
+         {
+            codeFiles = visitor.write();
+         }
+         finally
+         {
+            writePhase.close();
+         }
+
+         boolean failed = false;
+         for (EmbeddedCodeVisitor.CodeFile codeFile : codeFiles)
+         {
+            final String path = codeFile.getFile().getCanonicalPath();
+
+            if (codeFile.getException() != null)
+            {
+               System.err.println("Cannot open file " + path + " for writing: " + codeFile.getException().getMessage());
+               failed = true;
+            }
+            else if (codeFile.isWritten())
+            {
+               System.out.println("Writing " + path);
+               Stats.count("charactersWritten", codeFile.getLength());
+            }
+            else
+            {
+               System.out.println("Unchanged " + path);
+               Stats.count("filesUnchanged", 1);
+            }
+         }
+
+         Stats.count("codeBlocks", codeFiles.size());
+
+         List<DiagramRenderer.Diagram> diagrams = Collections.emptyList();
+         if (cmd.hasOption("render"))
+         {
+            File cacheDir = new File(outputDir, ".diagrams");
+            if (cmd.hasOption("diagram-cache"))
+            {
+               cacheDir = new File(cmd.getOptionValue("diagram-cache"));
+            }
+
+            final Stats.Phase renderPhase = Stats.begin("render");
+            try
+            {
+               diagrams = new DiagramRenderer(cacheDir).render(codeFiles);
+            }
+            finally
+            {
+               renderPhase.close();
+            }
+
+            for (DiagramRenderer.Diagram diagram : diagrams)
+            {
+               final String path = diagram.getImageFile().getCanonicalPath();
+
+               if (diagram.getException() != null)
+               {
+                  System.err.println("Cannot render diagram " + path + ": " + diagram.getException().getMessage());
+                  failed = true;
+               }
+               else if (diagram.getError() != null)
+               {
+                  System.err.println("Cannot render diagram " + diagram.getCodeFile().getFile().getCanonicalPath() + ": " + diagram.getError());
+                  failed = true;
+               }
+               else
+               {
+                  System.out.println((diagram.isWritten() ? "Writing " : "Unchanged ") + path + (diagram.isCached() ? " (cached)" : ""));
+                  Stats.count(diagram.isCached() ? "diagramsCached" : "diagramsRendered", 1);
+               }
+            }
+         }
 
-         visitor.visit(result.document);
+         // the manifest lists only files that exist with the listed contents, so it is not written after a failure
+         if ((! failed) && cmd.hasOption("manifest"))
+         {
+            OutputFiles.writeIfChanged(new File(cmd.getOptionValue("manifest")), EmbeddedCodeVisitor.getManifest(codeFiles) + DiagramRenderer.getManifest(diagrams));
+         }
+
+         // written only when every file was extracted, so a failed build is not taken as up to date
+         if ((! failed) && cmd.hasOption(DependencyFile.OPTION))
+         {
+            DependencyFile dependencies = new DependencyFile();
+            for (EmbeddedCodeVisitor.CodeFile codeFile : codeFiles)
+            {
+               dependencies.addTarget(codeFile.getFile().getPath());
+            }
+            for (DiagramRenderer.Diagram diagram : diagrams)
+            {
+               dependencies.addTarget(diagram.getImageFile().getPath());
+            }
+            if (cmd.hasOption("manifest"))
+            {
+               dependencies.addTarget(cmd.getOptionValue("manifest"));
+            }
+            dependencies.addDocument(result);
+            dependencies.write(new File(cmd.getOptionValue(DependencyFile.OPTION)));
+         }
+
+         if (failed)
+         {
+            System.exit(1);
+         }
 
          System.exit(0);
       }
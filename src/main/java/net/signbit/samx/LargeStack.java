@@ -0,0 +1,188 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Runs a task on a thread with a large stack.
+ *
+ * The parser and the visitors recurse once per nesting level of the
+ * document, so deeply nested documents overflow the stack of the main
+ * thread. The stack of a new thread is sized when the thread is created and
+ * is only committed as it is used; override the size (in MiB) with
+ * -Dsamx.stackSize=N.
+ *
+ * Work that recurses into the document on other threads goes through map,
+ * whose worker threads get the same stack size. The fork-join pool cannot be
+ * used for that: its worker threads always have the default stack size.
+ */
+public final class LargeStack
+{
+   public static final long DEFAULT_STACK_SIZE_MIB = 512;
+
+   public interface Task
+   {
+      void run() throws IOException;
+   }
+
+   public static long getStackSizeMiB()
+   {
+      return Long.getLong("samx.stackSize", DEFAULT_STACK_SIZE_MIB);
+   }
+
+   private static final String WORKER_PREFIX = "samx-worker-";
+
+   private static ExecutorService workers = null;
+
+   private static synchronized ExecutorService getWorkers()
+   {
+      if (workers == null)
+      {
+         final long stackSize = getStackSizeMiB() * 1024 * 1024;
+         final AtomicInteger workerCount = new AtomicInteger();
+
+         workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable ->
+         {
+            Thread thread = new Thread(null, runnable, WORKER_PREFIX + workerCount.incrementAndGet(), stackSize);
+            thread.setDaemon(true);
+            return thread;
+         });
+      }
+
+      return workers;
+   }
+
+   /*
+    * applies function to every item on the large stack workers and returns the
+    * results in the order of the items; called from a worker, it runs in the
+    * calling thread, so nested calls cannot wait on each other
+    */
+   public static <T, R> List<R> map(List<T> items, Function<T, R> function)
+   {
+      ArrayList<R> results = new ArrayList<>(items.size());
+
+      if ((items.size() < 2) || Thread.currentThread().getName().startsWith(WORKER_PREFIX))
+      {
+         for (T item : items)
+         {
+            results.add(function.apply(item));
+         }
+         return results;
+      }
+
+      final ExecutorService executor = getWorkers();
+
+      ArrayList<Future<R>> futures = new ArrayList<>(items.size());
+      for (T item : items)
+      {
+         futures.add(executor.submit(() -> function.apply(item)));
+      }
+
+      try
+      {
+         for (Future<R> future : futures)
+         {
+            results.add(future.get());
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         futures.forEach(future -> future.cancel(true));
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted while waiting for the worker threads", ie);
+      }
+      catch (ExecutionException ee)
+      {
+         futures.forEach(future -> future.cancel(true));
+
+         final Throwable th = ee.getCause();
+         if (th instanceof RuntimeException)
+         {
+            throw (RuntimeException) th;
+         }
+         if (th instanceof Error)
+         {
+            throw (Error) th;
+         }
+         throw new IllegalStateException(th);
+      }
+
+      return results;
+   }
+
+   public static void run(Task task) throws IOException
+   {
+      final Throwable[] failure = new Throwable[1];
+
+      Thread thread = new Thread(null, () ->
+      {
+         try
+         {
+            task.run();
+         }
+         catch (Throwable th)
+         {
+            failure[0] = th;
+         }
+      }, "samx-main", getStackSizeMiB() * 1024 * 1024);
+
+      thread.start();
+
+      try
+      {
+         thread.join();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while waiting for the worker thread", ie);
+      }
+
+      final Throwable th = failure[0];
+      if (th == null)
+      {
+         return;
+      }
+
+      if (th instanceof StackOverflowError)
+      {
+         throw new IllegalStateException(String.format("Input is nested too deeply for a %d MiB stack; increase it with -Dsamx.stackSize", getStackSizeMiB()));
+      }
+      if (th instanceof IOException)
+      {
+         throw (IOException) th;
+      }
+      if (th instanceof RuntimeException)
+      {
+         throw (RuntimeException) th;
+      }
+      if (th instanceof Error)
+      {
+         throw (Error) th;
+      }
+      throw new IllegalStateException(th);
+   }
+}
@@ -0,0 +1,82 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/*
+ * Writing of generated files that leaves unchanged files alone, so their
+ * timestamps stay put and the tools downstream do not redo their work.
+ */
+public final class OutputFiles
+{
+   private OutputFiles()
+   {
+   }
+
+   /*
+    * writes text to file in UTF-8, unless the file already holds exactly
+    * that; returns true if the file was written
+    */
+   public static boolean writeIfChanged(File file, String text) throws IOException
+   {
+      return writeIfChanged(file, text.getBytes(StandardCharsets.UTF_8));
+   }
+
+   public static boolean writeIfChanged(File file, byte[] contents) throws IOException
+   {
+      if (file.isFile() && (file.length() == contents.length))
+      {
+         if (Arrays.equals(Files.readAllBytes(file.toPath()), contents))
+         {
+            return false;
+         }
+      }
+
+      Files.write(file.toPath(), contents);
+      return true;
+   }
+
+   /*
+    * the SHA-256 of contents, in lowercase hexadecimal
+    */
+   public static String sha256(byte[] contents)
+   {
+      try
+      {
+         final byte[] digest = MessageDigest.getInstance("SHA-256").digest(contents);
+
+         StringBuilder builder = new StringBuilder(digest.length * 2);
+         for (byte b : digest)
+         {
+            builder.append(String.format("%02x", b));
+         }
+         return builder.toString();
+      }
+      catch (NoSuchAlgorithmException nsae)
+      {
+         // every Java platform is required to implement SHA-256
+         throw new IllegalStateException(nsae);
+      }
+   }
+}
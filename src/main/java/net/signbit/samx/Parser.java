@@ -18,10 +18,13 @@ package net.signbit.samx;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 
 import org.antlr.v4.runtime.*;
+import org.antlr.v4.runtime.tree.ParseTree;
 
+import net.signbit.samx.events.Events;
 import net.signbit.samx.parser.SamXLexer;
 import net.signbit.samx.parser.SamXParser;
 
@@ -72,34 +75,120 @@ public class Parser
 
    public static Result parse(File inputFile, HashMap<String, Result> includedDocuments, HashMap<String, IOException> includedExceptions) throws IOException
    {
-      CharStream input = CharStreams.fromFileName(inputFile.getPath());
+      Stats.enterDocument();
 
-      Result result = new Result();
-      result.inputFile = inputFile;
-      result.includedDocuments = includedDocuments;
-      result.includedExceptions = includedExceptions;
-
-      SamXLexer lexer = new SamXLexer(input);
+      final Object event = Events.beginParse();
+      CharStream input = null;
+      Result result = null;
 
-      result.tokens = new CommonTokenStream(lexer);
-
-      SamXParser parser = new SamXParser(result.tokens);
+      try
+      {
+         final Stats.Phase readPhase = Stats.begin(Stats.documentPhase("read"));
+         try
+         {
+            input = CharStreams.fromFileName(inputFile.getPath());
+         }
+         finally
+         {
+            readPhase.close();
+         }
+
+         result = new Result();
+         result.inputFile = inputFile;
+         result.includedDocuments = includedDocuments;
+         result.includedExceptions = includedExceptions;
+
+         SamXLexer lexer = new SamXLexer(input);
+
+         result.tokens = new CommonTokenStream(lexer);
+
+         lex(result.tokens);
+
+         SamXParser parser = new SamXParser(result.tokens);
+
+         SAMErrorListener sel = new SAMErrorListener();
+         parser.addErrorListener(sel);
+         parser.setBasePath(inputFile.getParentFile());
+         parser.setIncludeDictionary(includedDocuments);
+         parser.setIncludeExceptionsDictionary(includedExceptions);
+
+         final Stats.Phase parsePhase = Stats.begin(Stats.documentPhase("parse"));
+         try
+         {
+            result.document = parser.document();
+         }
+         finally
+         {
+            parsePhase.close();
+         }
+         result.referencePaths = parser.getReferencePaths();
+         result.errorCount = sel.errorCount;
+
+         countNodes(result.document);
+
+         return result;
+      }
+      finally
+      {
+         commitParseEvent(event, inputFile.getPath(), input, result);
+         Stats.exitDocument();
+      }
+   }
 
-      SAMErrorListener sel = new SAMErrorListener();
-      parser.addErrorListener(sel);
-      parser.setBasePath(inputFile.getParentFile());
-      parser.setIncludeDictionary(includedDocuments);
-      parser.setIncludeExceptionsDictionary(includedExceptions);
+   private static void commitParseEvent(Object event, String file, CharStream input, Result result)
+   {
+      final long characters = (input == null) ? 0 : input.size();
+      final int tokens = ((result == null) || (result.tokens == null)) ? 0 : result.tokens.size();
+      Events.commitParse(event, file, characters, tokens);
+   }
 
-      result.document = parser.document();
-      result.referencePaths = parser.getReferencePaths();
-      result.errorCount = sel.errorCount;
+   /*
+    * runs the lexer over the whole input ahead of the parser, so the two
+    * phases can be timed separately
+    */
+   private static void lex(CommonTokenStream tokens)
+   {
+      if (Stats.isEnabled())
+      {
+         final Stats.Phase lexPhase = Stats.begin(Stats.documentPhase("lex"));
+         try
+         {
+            tokens.fill();
+         }
+         finally
+         {
+            lexPhase.close();
+         }
+         Stats.count("tokens", tokens.size());
+      }
+   }
 
-      return result;
+   private static void countNodes(ParserRuleContext document)
+   {
+      if (Stats.isEnabled() && (document != null))
+      {
+         long nodeCount = 0;
+
+         ArrayDeque<ParseTree> pending = new ArrayDeque<>();
+         pending.push(document);
+         while (! pending.isEmpty())
+         {
+            final ParseTree node = pending.pop();
+            nodeCount++;
+            for (int ii = 0; ii < node.getChildCount(); ii++)
+            {
+               pending.push(node.getChild(ii));
+            }
+         }
+
+         Stats.count("treeNodes", nodeCount);
+      }
    }
 
    public static Result parseString(String inputString)
    {
+      final Object event = Events.beginParse();
+
       CharStream input = CharStreams.fromString(inputString);
 
       Result result = new Result();
@@ -123,6 +212,8 @@ public class Parser
       result.referencePaths = parser.getReferencePaths();
       result.errorCount = sel.errorCount;
 
+      commitParseEvent(event, null, input, result);
+
       return result;
    }
 }
@@ -25,22 +25,68 @@ public final class PrettyPrint
 {
    public static void main(String[] args) throws IOException
    {
-      if (args.length < 1)
+      LargeStack.run(() -> prettyPrint(args));
+   }
+
+   private static void prettyPrint(String[] args) throws IOException
+   {
+      String inputFileName = null;
+      for (String arg : args)
+      {
+         if (arg.equals("--stats"))
+         {
+            Stats.enable("PrettyPrint");
+         }
+         else if (inputFileName == null)
+         {
+            inputFileName = arg;
+         }
+      }
+
+      if (inputFileName == null)
       {
          System.err.println("Required argument missing");
          return;
       }
 
-      Parser.Result parsingResult = Parser.parse(args[0]);
+      Parser.Result parsingResult = Parser.parse(inputFileName);
 
       PrettyPrinterVisitor printer = new PrettyPrinterVisitor(parsingResult.tokens);
 
-      StringBuilder builder = printer.visit(parsingResult.document);
+      String pretty;
+      final Stats.Phase renderPhase = Stats.begin("render");
+      try
+      {
+         StringBuilder builder = printer.visit(parsingResult.document);
 
-      final String pretty = builder.toString();
+         pretty = builder.toString();
+      }
+      finally
+      {
+         renderPhase.close();
+      }
 
-      System.out.print(pretty);
+      final Stats.Phase writePhase = Stats.begin("write");
+      try
+      {
+         System.out.print(pretty);
+         System.out.flush();
+      }
+      finally
+      {
+         writePhase.close();
+      }
+
+      Stats.count("charactersWritten", pretty.length());
 
-      VisitorUtils.checkMatch(args[0], pretty);
+      final Stats.Phase comparePhase = Stats.begin("compare");
+      try
+      {
+         VisitorUtils.checkMatch(inputFileName, pretty);
+      }
+      finally
+      {
+         comparePhase.close();
+      }
    }
 }
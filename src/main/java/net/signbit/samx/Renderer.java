@@ -17,6 +17,7 @@
 package net.signbit.samx;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Writer;
@@ -25,6 +26,7 @@ import java.util.Properties;
 import org.apache.commons.cli.*;
 import org.xml.sax.SAXException;
 
+import net.signbit.samx.visitors.BlockProfile;
 import net.signbit.samx.visitors.RendererVisitor;
 
 public abstract class Renderer
@@ -33,14 +35,36 @@ public abstract class Renderer
    {
       Options options = new Options();
 
-      Option input = new Option("i", "input", true, "input file path");
+      Option input = new Option("i", "input", true, "input file path; repeat -i and -o to render several documents in one run");
       input.setRequired(true);
       options.addOption(input);
 
-      Option output = new Option("o", "output", true, "output file path");
+      Option output = new Option("o", "output", true, "output file path, one for each input");
       output.setRequired(true);
       options.addOption(output);
 
+      addVariantOptions(options);
+
+      Option parallel = new Option("j", "parallel", false, "render top-level blocks in parallel");
+      options.addOption(parallel);
+
+      Option asyncOutput = new Option("a", "async-output", false, "write the output on a background thread");
+      options.addOption(asyncOutput);
+
+      addStatsOption(options);
+
+      DependencyFile.addOption(options);
+
+      Option profileBlocks = new Option(null, "profile-blocks", true, "print the render time and output size of the slowest blocks (default " + BlockProfile.DEFAULT_TOP_COUNT + ")");
+      profileBlocks.setArgName("count");
+      profileBlocks.setOptionalArg(true);
+      options.addOption(profileBlocks);
+
+      return options;
+   }
+
+   public static void addVariantOptions(Options options)
+   {
       Option property = new Option("V", true, "variables");
       property.setArgs(2);
       property.setValueSeparator('=');
@@ -51,8 +75,29 @@ public abstract class Renderer
 
       Option falseFlags = new Option("F", "false", true, "flags with false values");
       options.addOption(falseFlags);
+   }
 
-      return options;
+   public static void addStatsOption(Options options)
+   {
+      Option stats = new Option(null, "stats", false, "print a JSON report with the time spent in each phase");
+      options.addOption(stats);
+   }
+
+   private static int getTopCount(String value) throws ParseException
+   {
+      if (value == null)
+      {
+         return BlockProfile.DEFAULT_TOP_COUNT;
+      }
+
+      try
+      {
+         return Integer.parseInt(value);
+      }
+      catch (NumberFormatException nfe)
+      {
+         throw new ParseException("Invalid block count for --profile-blocks: " + value);
+      }
    }
 
    protected abstract void addCustomOptions(Options options);
@@ -63,7 +108,47 @@ public abstract class Renderer
 
    protected abstract boolean performCheck(CommandLine cmd) throws IOException, SAXException;
 
-   public void render(String[] args)
+   /*
+    * lets a renderer see the output as it is written, for checking it while
+    * rendering; the returned writer must pass everything on to output
+    */
+   protected Writer teeOutput(CommandLine cmd, Writer output)
+   {
+      return output;
+   }
+
+   /*
+    * lets a renderer list the files it reads or writes besides the input
+    * documents and the output
+    */
+   protected void addDependencies(CommandLine cmd, DependencyFile dependencies)
+   {
+   }
+
+   /*
+    * the document being rendered; a batch renders its documents one after
+    * the other in the same process, so the state kept for the process, like
+    * the compiled schemas, is shared between them
+    */
+   private String inputPath = null;
+   private String outputPath = null;
+
+   protected String getInputPath()
+   {
+      return inputPath;
+   }
+
+   protected String getOutputPath()
+   {
+      return outputPath;
+   }
+
+   public void render(String[] args) throws IOException
+   {
+      LargeStack.run(() -> renderDocuments(args));
+   }
+
+   private void renderDocuments(String[] args)
    {
       Options options = makeOptions();
 
@@ -76,35 +161,33 @@ public abstract class Renderer
       {
          CommandLine cmd = cmdLine.parse(options, args);
 
-         FileWriter fileWriter = new FileWriter(cmd.getOptionValue("output"));
-
-         BufferedWriter writer = new BufferedWriter(fileWriter);
-
-         Parser.Result result = Parser.parse(cmd.getOptionValue("input"));
-         if (result.errorCount > 0)
+         final String[] inputs = cmd.getOptionValues("input");
+         final String[] outputs = cmd.getOptionValues("output");
+         if (inputs.length != outputs.length)
          {
-            System.err.print("Failed to parse input file " + cmd.getOptionValue("input"));
-            System.exit(10);
+            throw new ParseException(String.format("Got %d inputs and %d outputs; give one output for each input", inputs.length, outputs.length));
          }
 
-         RendererVisitor visitor = makeVisitor(writer, result);
-
-         Properties props = cmd.getOptionProperties("V");
-         visitor.setProperties(props);
-         visitor.setTrueFlags(cmd.getOptionValues("T"));
-         visitor.setFalseFlags(cmd.getOptionValues("F"));
-
-         addCustomOptions(cmd);
-
-         visitor.visit(result.document);
+         if ((inputs.length > 1) && cmd.hasOption(DependencyFile.OPTION))
+         {
+            throw new ParseException("A dependency file can only be written for a single input");
+         }
 
-         writer.close();
-         fileWriter.close();
+         if (cmd.hasOption("stats"))
+         {
+            Stats.enable(getClass().getSimpleName());
+         }
 
-         if (! performCheck(cmd))
+         for (int ii = 0; ii < inputs.length; ++ ii)
          {
-            System.err.println("Resulting document is not well-formed or valid");
-            System.exit(1);
+            inputPath = inputs[ii];
+            outputPath = outputs[ii];
+
+            final int status = renderDocument(cmd);
+            if (status != 0)
+            {
+               System.exit(status);
+            }
          }
 
          System.exit(0);
@@ -125,4 +208,103 @@ public abstract class Renderer
 
       System.exit(1);
    }
+
+   /*
+    * renders the current document and returns the exit status
+    */
+   private int renderDocument(CommandLine cmd) throws IOException, SAXException, ParseException
+   {
+      FileWriter fileWriter = new FileWriter(outputPath);
+
+      final Writer output = teeOutput(cmd, fileWriter);
+
+      Writer writer;
+      if (cmd.hasOption("a"))
+      {
+         writer = new DoubleBufferedWriter(output);
+      }
+      else
+      {
+         writer = new BufferedWriter(output);
+      }
+
+      Parser.Result result = Parser.parse(inputPath);
+      if (result.errorCount > 0)
+      {
+         System.err.print("Failed to parse input file " + inputPath);
+         return 10;
+      }
+
+      RendererVisitor visitor = makeVisitor(writer, result);
+
+      Properties props = cmd.getOptionProperties("V");
+      visitor.setProperties(props);
+      visitor.setTrueFlags(cmd.getOptionValues("T"));
+      visitor.setFalseFlags(cmd.getOptionValues("F"));
+      visitor.setParallelRendering(cmd.hasOption("j"));
+
+      BlockProfile blockProfile = null;
+      int topBlockCount = 0;
+      if (cmd.hasOption("profile-blocks"))
+      {
+         topBlockCount = getTopCount(cmd.getOptionValue("profile-blocks"));
+         blockProfile = new BlockProfile();
+         visitor.setBlockProfile(blockProfile);
+      }
+
+      addCustomOptions(cmd);
+
+      final Stats.Phase renderPhase = Stats.begin("render");
+      try
+      {
+         visitor.visit(result.document);
+      }
+      finally
+      {
+         renderPhase.close();
+      }
+
+      final Stats.Phase writePhase = Stats.begin("write");
+      try
+      {
+         writer.close();
+         fileWriter.close();
+      }
+      finally
+      {
+         writePhase.close();
+      }
+
+      Stats.count("charactersWritten", visitor.getCharactersWritten());
+      Stats.count("bytesWritten", new File(outputPath).length());
+
+      if (blockProfile != null)
+      {
+         blockProfile.report(System.err, topBlockCount);
+      }
+
+      if (visitor.getException() != null)
+      {
+         System.err.println("Failed to write output: " + visitor.getException().getMessage());
+         return 1;
+      }
+
+      if (! performCheck(cmd))
+      {
+         System.err.println("Resulting document is not well-formed or valid");
+         return 1;
+      }
+
+      // written only for a good output, so a failed build is not taken as up to date
+      if (cmd.hasOption(DependencyFile.OPTION))
+      {
+         DependencyFile dependencies = new DependencyFile();
+         dependencies.addTarget(outputPath);
+         dependencies.addDocument(result);
+         addDependencies(cmd, dependencies);
+         dependencies.write(new File(cmd.getOptionValue(DependencyFile.OPTION)));
+      }
+
+      return 0;
+   }
 }
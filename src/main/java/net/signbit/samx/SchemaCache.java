@@ -0,0 +1,118 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import com.thaiopensource.util.PropertyMapBuilder;
+import com.thaiopensource.validate.IncorrectSchemaException;
+import com.thaiopensource.validate.Schema;
+import com.thaiopensource.validate.SchemaReader;
+import com.thaiopensource.validate.ValidateProperty;
+import com.thaiopensource.validate.auto.AutoSchemaReader;
+
+/*
+ * Compiled RelaxNG schemas, kept for the life of the process so every
+ * document validated against the same schema reuses one compilation; the
+ * renderers convert several documents in one process when given several
+ * inputs.
+ *
+ * Schemas are keyed by the SHA-256 of their uncompressed text, so the same
+ * schema found under different names, or compressed and not, is compiled
+ * once, and a schema file edited in place is compiled again.
+ *
+ * A compiled Schema is immutable and safe to share between threads; each
+ * validation creates its own Validator from it.
+ */
+public final class SchemaCache
+{
+   private static final ConcurrentHashMap<String, Schema> schemas = new ConcurrentHashMap<>();
+
+   private SchemaCache()
+   {
+   }
+
+   /*
+    * errorHandler receives the errors in the schema, if it has to be compiled
+    */
+   public static Schema getSchema(File schemaFile, ErrorHandler errorHandler) throws IOException, SAXException
+   {
+      final byte[] schemaText = readSchema(schemaFile);
+      final String key = OutputFiles.sha256(schemaText);
+
+      Schema schema = schemas.get(key);
+      if (schema != null)
+      {
+         Stats.count("schemaCacheHits", 1);
+         return schema;
+      }
+
+      schema = compile(schemaFile, schemaText, errorHandler);
+
+      final Schema previous = schemas.putIfAbsent(key, schema);
+      return (previous != null) ? previous : schema;
+   }
+
+   private static byte[] readSchema(File schemaFile) throws IOException
+   {
+      InputStream schemaStream = new FileInputStream(schemaFile);
+      if (schemaFile.getName().endsWith(".gz"))
+      {
+         schemaStream = new GZIPInputStream(schemaStream);
+      }
+
+      try
+      {
+         return IOUtils.toByteArray(schemaStream);
+      }
+      finally
+      {
+         schemaStream.close();
+      }
+   }
+
+   private static Schema compile(File schemaFile, byte[] schemaText, ErrorHandler errorHandler) throws IOException, SAXException
+   {
+      PropertyMapBuilder properties = new PropertyMapBuilder();
+      properties.put(ValidateProperty.ERROR_HANDLER, errorHandler);
+
+      final SchemaReader schemaReader = new AutoSchemaReader();
+
+      // compiled on the checking thread, so not timed as a phase of the main one
+      Stats.count("schemaCompilations", 1);
+
+      try
+      {
+         return schemaReader.createSchema(new InputSource(new ByteArrayInputStream(schemaText)), properties.toPropertyMap());
+      }
+      catch (IncorrectSchemaException ise)
+      {
+         throw new SAXException("Cannot load the schema " + schemaFile.getPath());
+      }
+   }
+}
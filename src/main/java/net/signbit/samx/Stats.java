@@ -0,0 +1,351 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/*
+ * Per-phase timing and counters, reported as JSON on standard error when
+ * the tool exits. Enabled with --stats; when disabled, begin() returns a
+ * phase that does nothing.
+ *
+ * Phases nest; the time and allocation of a phase do not include those of
+ * the phases nested in it, so the phases add up to the total. CPU time and
+ * allocation are measured for the thread running the phases. Each thread
+ * nests its phases separately, so the phases of a thread running alongside
+ * the main one (the output check) overlap the main phases in wall time;
+ * other work handed to other threads (parallel rendering, background
+ * output) is only visible in the wall time.
+ */
+public final class Stats
+{
+   public interface Phase extends AutoCloseable
+   {
+      @Override
+      void close();
+   }
+
+   private static final Phase NO_PHASE = () -> {};
+
+   private static volatile Stats active = null;
+
+   private static class Totals
+   {
+      long calls = 0;
+      long wallNanos = 0;
+      long cpuNanos = 0;
+      long allocatedBytes = 0;
+   }
+
+   private class Frame implements Phase
+   {
+      final String name;
+
+      final long wallStart;
+      final long cpuStart;
+      final long allocatedStart;
+
+      long childWall = 0;
+      long childCpu = 0;
+      long childAllocated = 0;
+
+      Frame(String name)
+      {
+         this.name = name;
+
+         wallStart = System.nanoTime();
+         cpuStart = getCpuTime();
+         allocatedStart = getAllocatedBytes();
+      }
+
+      @Override
+      public void close()
+      {
+         endPhase(this);
+      }
+   }
+
+   private final String tool;
+   private final long startNanos = System.nanoTime();
+
+   private final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+   private final boolean cpuTimeSupported;
+   private final boolean allocationSupported;
+
+   private final ThreadLocal<ArrayDeque<Frame>> threadFrames = ThreadLocal.withInitial(ArrayDeque::new);
+   private final LinkedHashMap<String, Totals> phases = new LinkedHashMap<>();
+   private final LinkedHashMap<String, Long> counters = new LinkedHashMap<>();
+
+   private int documentDepth = 0;
+
+   private Stats(String tool)
+   {
+      this.tool = tool;
+
+      cpuTimeSupported = threadBean.isCurrentThreadCpuTimeSupported();
+
+      boolean allocation = false;
+      if (threadBean instanceof com.sun.management.ThreadMXBean)
+      {
+         allocation = ((com.sun.management.ThreadMXBean) threadBean).isThreadAllocatedMemorySupported();
+      }
+      allocationSupported = allocation;
+   }
+
+   /*
+    * starts collecting; the report is printed when the JVM exits
+    */
+   public static synchronized void enable(String tool)
+   {
+      if (active != null)
+      {
+         return;
+      }
+
+      final Stats stats = new Stats(tool);
+      active = stats;
+
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> stats.report(System.err)));
+   }
+
+   public static boolean isEnabled()
+   {
+      return active != null;
+   }
+
+   public static Phase begin(String name)
+   {
+      final Stats stats = active;
+      if (stats == null)
+      {
+         return NO_PHASE;
+      }
+      return stats.beginPhase(name);
+   }
+
+   public static void count(String name, long delta)
+   {
+      final Stats stats = active;
+      if (stats != null)
+      {
+         stats.add(name, delta);
+      }
+   }
+
+   public static void max(String name, long value)
+   {
+      final Stats stats = active;
+      if (stats != null)
+      {
+         stats.keepMax(name, value);
+      }
+   }
+
+   /*
+    * Tracks the nesting of documents being parsed; phases of included
+    * documents are reported separately from those of the main document.
+    */
+   static void enterDocument()
+   {
+      final Stats stats = active;
+      if (stats != null)
+      {
+         synchronized (stats)
+         {
+            stats.documentDepth++;
+            if (stats.documentDepth > 1)
+            {
+               stats.keepMax("includeDepth", stats.documentDepth - 1);
+               stats.add("includes", 1);
+            }
+         }
+      }
+   }
+
+   static void exitDocument()
+   {
+      final Stats stats = active;
+      if (stats != null)
+      {
+         synchronized (stats)
+         {
+            stats.documentDepth--;
+         }
+      }
+   }
+
+   static String documentPhase(String phaseName)
+   {
+      final Stats stats = active;
+      if (stats != null)
+      {
+         synchronized (stats)
+         {
+            if (stats.documentDepth > 1)
+            {
+               return "include " + phaseName;
+            }
+         }
+      }
+      return phaseName;
+   }
+
+   private long getCpuTime()
+   {
+      return cpuTimeSupported ? threadBean.getCurrentThreadCpuTime() : 0;
+   }
+
+   private long getAllocatedBytes()
+   {
+      if (allocationSupported)
+      {
+         return ((com.sun.management.ThreadMXBean) threadBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+      return 0;
+   }
+
+   private synchronized Phase beginPhase(String name)
+   {
+      Frame frame = new Frame(name);
+      threadFrames.get().push(frame);
+      return frame;
+   }
+
+   private synchronized void endPhase(Frame frame)
+   {
+      final long wall = System.nanoTime() - frame.wallStart;
+      final long cpu = getCpuTime() - frame.cpuStart;
+      final long allocated = getAllocatedBytes() - frame.allocatedStart;
+
+      final ArrayDeque<Frame> frames = threadFrames.get();
+
+      // phases left open by an exception are closed along with their parent
+      while ((! frames.isEmpty()) && (frames.peek() != frame))
+      {
+         frames.pop();
+      }
+      frames.poll();
+
+      final Totals totals = phases.computeIfAbsent(frame.name, key -> new Totals());
+      totals.calls++;
+      totals.wallNanos += wall - frame.childWall;
+      totals.cpuNanos += cpu - frame.childCpu;
+      totals.allocatedBytes += allocated - frame.childAllocated;
+
+      final Frame parent = frames.peek();
+      if (parent != null)
+      {
+         parent.childWall += wall;
+         parent.childCpu += cpu;
+         parent.childAllocated += allocated;
+      }
+   }
+
+   private synchronized void add(String name, long delta)
+   {
+      counters.merge(name, delta, Long::sum);
+   }
+
+   private synchronized void keepMax(String name, long value)
+   {
+      counters.merge(name, value, Math::max);
+   }
+
+   private static String quote(String text)
+   {
+      StringBuilder builder = new StringBuilder("\"");
+      for (int ii = 0; ii < text.length(); ii++)
+      {
+         final char ch = text.charAt(ii);
+         switch (ch)
+         {
+            case '"':
+               builder.append("\\\"");
+               break;
+
+            case '\\':
+               builder.append("\\\\");
+               break;
+
+            default:
+               if (ch < ' ')
+               {
+                  builder.append(String.format("\\u%04x", (int) ch));
+               }
+               else
+               {
+                  builder.append(ch);
+               }
+               break;
+         }
+      }
+      builder.append('"');
+      return builder.toString();
+   }
+
+   private static String millis(long nanos)
+   {
+      return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+   }
+
+   synchronized void report(PrintStream out)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      builder.append("{\n");
+      builder.append("  \"tool\": ").append(quote(tool)).append(",\n");
+      builder.append("  \"wallMs\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+
+      builder.append("  \"phases\": [");
+      boolean first = true;
+      for (Map.Entry<String, Totals> entry : phases.entrySet())
+      {
+         final Totals totals = entry.getValue();
+
+         builder.append(first ? "\n" : ",\n");
+         builder.append("    {\"name\": ").append(quote(entry.getKey()));
+         builder.append(", \"calls\": ").append(totals.calls);
+         builder.append(", \"wallMs\": ").append(millis(totals.wallNanos));
+         builder.append(", \"cpuMs\": ").append(cpuTimeSupported ? millis(totals.cpuNanos) : "null");
+         builder.append(", \"allocatedBytes\": ").append(allocationSupported ? Long.toString(totals.allocatedBytes) : "null");
+         builder.append('}');
+         first = false;
+      }
+      builder.append(first ? "],\n" : "\n  ],\n");
+
+      builder.append("  \"counters\": {");
+      first = true;
+      for (Map.Entry<String, Long> entry : counters.entrySet())
+      {
+         builder.append(first ? "\n" : ",\n");
+         builder.append("    ").append(quote(entry.getKey())).append(": ").append(entry.getValue());
+         first = false;
+      }
+      builder.append(first ? "}\n" : "\n  }\n");
+
+      builder.append("}");
+
+      out.println(builder.toString());
+      out.flush();
+   }
+}
@@ -0,0 +1,178 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+import org.apache.commons.cli.*;
+
+import net.signbit.samx.visitors.ConditionVariablesVisitor;
+
+/*
+ * Partitions a variant matrix into classes of variants that render identical
+ * output for a given document (and its includes).
+ *
+ * Each line of the matrix file names a variant, followed by the same -T, -F
+ * and -V arguments accepted by the renderers:
+ *
+ *    pro-linux   -T pro -V os=linux
+ *    pro-macos   -T pro -V os=macos
+ *
+ * One line is printed for each class; the first variant on the line is the
+ * representative that needs to be rendered, the others can be copied from it.
+ */
+public final class VariantClasses
+{
+   static class Variant
+   {
+      final String name;
+      final Properties properties;
+      final Set<String> trueFlags = new HashSet<>();
+      final Set<String> falseFlags = new HashSet<>();
+
+      Variant(String name, CommandLine cmd)
+      {
+         this.name = name;
+
+         properties = cmd.getOptionProperties("V");
+         if (cmd.getOptionValues("T") != null)
+         {
+            trueFlags.addAll(Arrays.asList(cmd.getOptionValues("T")));
+         }
+         if (cmd.getOptionValues("F") != null)
+         {
+            falseFlags.addAll(Arrays.asList(cmd.getOptionValues("F")));
+         }
+      }
+   }
+
+   static ArrayList<Variant> readMatrix(String matrixFileName) throws IOException, ParseException
+   {
+      Options variantOptions = new Options();
+      Renderer.addVariantOptions(variantOptions);
+
+      CommandLineParser variantParser = new DefaultParser();
+
+      ArrayList<Variant> variants = new ArrayList<>();
+
+      for (String line : Files.readAllLines(Paths.get(matrixFileName)))
+      {
+         final String trimmed = line.trim();
+         if (trimmed.isEmpty() || (trimmed.charAt(0) == '#'))
+         {
+            continue;
+         }
+
+         final String[] words = trimmed.split("\\s+");
+         final CommandLine cmd = variantParser.parse(variantOptions, Arrays.copyOfRange(words, 1, words.length));
+
+         variants.add(new Variant(words[0], cmd));
+      }
+
+      return variants;
+   }
+
+   static ConditionVariablesVisitor collectVariables(Parser.Result result)
+   {
+      ConditionVariablesVisitor visitor = new ConditionVariablesVisitor();
+
+      visitor.visit(result.document);
+
+      for (Parser.Result included : result.includedDocuments.values())
+      {
+         visitor.visit(included.document);
+      }
+
+      return visitor;
+   }
+
+   static Collection<ArrayList<Variant>> partition(ConditionVariablesVisitor visitor, List<Variant> variants)
+   {
+      LinkedHashMap<String, ArrayList<Variant>> classes = new LinkedHashMap<>();
+
+      for (Variant variant : variants)
+      {
+         final String signature = visitor.getSignature(variant.properties, variant.trueFlags, variant.falseFlags);
+         classes.computeIfAbsent(signature, key -> new ArrayList<>()).add(variant);
+      }
+
+      return classes.values();
+   }
+
+   public static void main(String[] args) throws IOException
+   {
+      Options options = new Options();
+
+      Option input = new Option("i", "input", true, "input file path");
+      input.setRequired(true);
+      options.addOption(input);
+
+      Option matrix = new Option("m", "matrix", true, "variant matrix file path");
+      matrix.setRequired(true);
+      options.addOption(matrix);
+
+      CommandLineParser cmdLine = new DefaultParser();
+      HelpFormatter helpFmt = new HelpFormatter();
+
+      try
+      {
+         CommandLine cmd = cmdLine.parse(options, args);
+
+         Parser.Result result = Parser.parse(cmd.getOptionValue("input"));
+         if (result.errorCount > 0)
+         {
+            System.err.print("Failed to parse input file " + cmd.getOptionValue("input"));
+            System.exit(10);
+         }
+
+         final ArrayList<Variant> variants = readMatrix(cmd.getOptionValue("matrix"));
+
+         final ConditionVariablesVisitor visitor = collectVariables(result);
+
+         for (Map.Entry<String, ConditionVariablesVisitor.Variable> entry : visitor.getVariables().entrySet())
+         {
+            System.err.println(String.format("Variable %s %s", entry.getKey(), entry.getValue().getValues()));
+         }
+
+         final Collection<ArrayList<Variant>> classes = partition(visitor, variants);
+
+         for (ArrayList<Variant> variantClass : classes)
+         {
+            StringJoiner joiner = new StringJoiner(" ");
+            for (Variant variant : variantClass)
+            {
+               joiner.add(variant.name);
+            }
+            System.out.println(joiner.toString());
+         }
+
+         System.err.println(String.format("%d variants in %d classes", variants.size(), classes.size()));
+
+         System.exit(0);
+      }
+      catch (ParseException pe)
+      {
+         System.err.println(pe.getMessage());
+         helpFmt.printHelp("VariantClasses", options);
+      }
+
+      System.exit(1);
+   }
+}
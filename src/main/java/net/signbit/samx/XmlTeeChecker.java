@@ -0,0 +1,503 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx;
+
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import org.xml.sax.ContentHandler;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+import com.thaiopensource.util.PropertyMap;
+import com.thaiopensource.util.PropertyMapBuilder;
+import com.thaiopensource.validate.ResolverFactory;
+import com.thaiopensource.validate.Schema;
+import com.thaiopensource.validate.ValidateProperty;
+import com.thaiopensource.validate.Validator;
+import com.thaiopensource.xml.sax.CountingErrorHandler;
+import com.thaiopensource.xml.sax.ErrorHandlerImpl;
+import com.thaiopensource.xml.sax.ForkContentHandler;
+
+import net.signbit.samx.events.Events;
+
+/*
+ * Checks the XML output while it is being written: the writer returned by
+ * tee() passes the output through and also hands it to a thread that parses
+ * it with SAX, checking that it is well-formed and, given a RelaxNG schema,
+ * validating it with Jing in the same pass. Schemas come from SchemaCache.
+ *
+ * The same pass can also feed the events to an XSLT stylesheet, so the
+ * output is transformed without writing it out and parsing it again.
+ *
+ * With XInclude processing enabled, the references in the output are
+ * followed, so a main document made of chunks is checked as a whole.
+ *
+ * The messages of the check are kept until getResult(), so they are printed
+ * after the output is complete, as if the file had been checked then.
+ */
+public class XmlTeeChecker
+{
+   private static final int CHUNK_SIZE = 64 * 1024;
+
+   // chunks the checker may fall behind by before the output has to wait
+   private static final int QUEUE_LENGTH = 256;
+
+   private static final char[] END_OF_OUTPUT = new char[0];
+
+   public static class Result
+   {
+      public boolean wellFormed = false;
+      public boolean valid = false;
+
+      // parse error that made the output not well-formed
+      public SAXParseException fatalError = null;
+
+      // messages of the parser and of the validator, in the Jing format
+      public String messages = "";
+
+      // the stylesheet, if any, was applied to the whole output
+      public boolean transformed = false;
+   }
+
+   private final String systemId;
+   private final File schemaFile;
+
+   private File stylesheetFile = null;
+   private File transformResultFile = null;
+
+   private boolean xincludeAware = false;
+
+   private final BlockingQueue<char[]> chunks = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+   private volatile boolean checkDone = false;
+
+   private FutureTask<Result> check = null;
+
+   /*
+    * systemId names the output in the messages; schemaFile may be null, for
+    * checking only that the output is well-formed
+    */
+   public XmlTeeChecker(String systemId, File schemaFile)
+   {
+      this.systemId = systemId;
+      this.schemaFile = schemaFile;
+   }
+
+   /*
+    * applies the stylesheet to the output, writing the result to resultFile;
+    * to be called before tee()
+    */
+   public void setTransform(File stylesheet, File resultFile)
+   {
+      stylesheetFile = stylesheet;
+      transformResultFile = resultFile;
+   }
+
+   /*
+    * follows the XIncludes in the output, resolved against systemId; the
+    * included files must be complete before the output refers to them
+    */
+   public void setXIncludeAware(boolean enable)
+   {
+      xincludeAware = enable;
+   }
+
+   public Writer tee(Writer out)
+   {
+      check = new FutureTask<>(this::runCheck);
+
+      Thread thread = new Thread(check, "samx-check");
+      thread.setDaemon(true);
+      thread.start();
+
+      return new TeeWriter(out);
+   }
+
+   /*
+    * waits for the check to see the end of the output; the writer returned
+    * by tee() must have been closed
+    */
+   public Result getResult() throws IOException, SAXException
+   {
+      try
+      {
+         return check.get();
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while checking the output", ie);
+      }
+      catch (ExecutionException ee)
+      {
+         if (ee.getCause() instanceof IOException)
+         {
+            throw (IOException) ee.getCause();
+         }
+         if (ee.getCause() instanceof SAXException)
+         {
+            throw (SAXException) ee.getCause();
+         }
+         throw new IllegalStateException(ee.getCause());
+      }
+   }
+
+   private Result runCheck() throws IOException, SAXException
+   {
+      OutputStream transformResult = null;
+
+      try
+      {
+         Result result = new Result();
+
+         StringWriter messages = new StringWriter();
+         ErrorHandlerImpl errorHandler = new ErrorHandlerImpl(messages);
+
+         Schema schema = null;
+         if (schemaFile != null)
+         {
+            final Stats.Phase schemaPhase = Stats.begin("schema load");
+            try
+            {
+               schema = SchemaCache.getSchema(schemaFile, errorHandler);
+            }
+            finally
+            {
+               schemaPhase.close();
+            }
+         }
+
+         TransformerHandler transform = null;
+         if (stylesheetFile != null)
+         {
+            transformResult = new BufferedOutputStream(new FileOutputStream(transformResultFile));
+            transform = makeTransform(transformResult);
+         }
+
+         // one pass over the output: either a plain parse or Jing validation, which also checks well-formedness
+         final Stats.Phase checkPhase = Stats.begin((schema == null) ? "well-formedness check" : "validation");
+         try
+         {
+            if (schema == null)
+            {
+               checkWellFormed(errorHandler, transform);
+               result.valid = true;
+            }
+            else
+            {
+               result.valid = validate(schema, errorHandler, transform);
+            }
+            result.wellFormed = true;
+            result.transformed = (transform != null);
+         }
+         catch (SAXParseException spe)
+         {
+            result.fatalError = spe;
+         }
+         finally
+         {
+            checkPhase.close();
+         }
+
+         errorHandler.close();
+         result.messages = messages.toString();
+         return result;
+      }
+      finally
+      {
+         checkDone = true;
+         chunks.clear();
+
+         if (transformResult != null)
+         {
+            transformResult.close();
+         }
+      }
+   }
+
+   private TransformerHandler makeTransform(OutputStream transformResult) throws SAXException
+   {
+      final TransformerFactory factory = TransformerFactory.newInstance();
+      if (! factory.getFeature(SAXTransformerFactory.FEATURE))
+      {
+         throw new SAXException("The XSLT processor cannot take its input from SAX events");
+      }
+
+      try
+      {
+         TransformerHandler handler = ((SAXTransformerFactory) factory).newTransformerHandler(new StreamSource(stylesheetFile));
+         handler.setSystemId(new File(systemId).toURI().toString());
+         handler.setResult(new StreamResult(transformResult));
+         return handler;
+      }
+      catch (TransformerConfigurationException tce)
+      {
+         throw new SAXException("Cannot load the stylesheet " + stylesheetFile.getPath() + ": " + tce.getMessage(), tce);
+      }
+   }
+
+   /*
+    * sends the events of the parse to handler, and to transform if not null
+    */
+   private static void connect(XMLReader reader, ContentHandler handler, TransformerHandler transform) throws SAXException
+   {
+      if (transform == null)
+      {
+         reader.setContentHandler(handler);
+         return;
+      }
+
+      reader.setContentHandler(new ForkContentHandler(handler, transform));
+
+      // keeps the comments in the transformed document
+      reader.setProperty("http://xml.org/sax/properties/lexical-handler", transform);
+   }
+
+   private InputSource makeOutputSource()
+   {
+      InputSource source = new InputSource(new ChunkReader());
+      source.setSystemId(systemId);
+      return source;
+   }
+
+   private XMLReader makeReader() throws SAXException
+   {
+      final SAXParserFactory factory = SAXParserFactory.newInstance();
+      factory.setValidating(false);
+      factory.setNamespaceAware(true);
+      factory.setXIncludeAware(xincludeAware);
+
+      try
+      {
+         return factory.newSAXParser().getXMLReader();
+      }
+      catch (javax.xml.parsers.ParserConfigurationException pce)
+      {
+         throw new SAXException(pce);
+      }
+   }
+
+   private void checkWellFormed(ErrorHandler errorHandler, TransformerHandler transform) throws IOException, SAXException
+   {
+      final XMLReader reader = makeReader();
+
+      connect(reader, new DefaultHandler(), transform);
+      reader.setErrorHandler(errorHandler);
+      reader.parse(makeOutputSource());
+   }
+
+   private boolean validate(Schema schema, ErrorHandler errorHandler, TransformerHandler transform) throws IOException, SAXException
+   {
+      final CountingErrorHandler countingHandler = new CountingErrorHandler(errorHandler);
+
+      PropertyMapBuilder properties = new PropertyMapBuilder();
+      properties.put(ValidateProperty.ERROR_HANDLER, countingHandler);
+      final PropertyMap instanceProperties = properties.toPropertyMap();
+
+      final Validator validator = schema.createValidator(instanceProperties);
+
+      final XMLReader reader = xincludeAware ? makeReader() : ResolverFactory.createResolver(instanceProperties).createXMLReader();
+      reader.setErrorHandler(countingHandler);
+      connect(reader, validator.getContentHandler(), transform);
+      if (validator.getDTDHandler() != null)
+      {
+         reader.setDTDHandler(validator.getDTDHandler());
+      }
+
+      boolean isValid = false;
+      final Object event = Events.beginValidation();
+      try
+      {
+         reader.parse(makeOutputSource());
+         isValid = ! countingHandler.getHadErrorOrFatalError();
+      }
+      finally
+      {
+         Events.commitValidation(event, schemaFile.getPath(), systemId, isValid);
+      }
+      return isValid;
+   }
+
+   private void put(char[] chunk) throws IOException
+   {
+      try
+      {
+         // once the check is over, the rest of the output is not needed
+         while ((! checkDone) && (! chunks.offer(chunk, 50, TimeUnit.MILLISECONDS)))
+         {
+         }
+      }
+      catch (InterruptedException ie)
+      {
+         Thread.currentThread().interrupt();
+         throw new IOException("Interrupted while checking the output", ie);
+      }
+   }
+
+   private class TeeWriter extends Writer
+   {
+      private final Writer out;
+
+      private char[] chunk = new char[CHUNK_SIZE];
+      private int count = 0;
+
+      private boolean closed = false;
+
+      TeeWriter(Writer out)
+      {
+         this.out = out;
+      }
+
+      private void copy(char[] cbuf, int off, int len) throws IOException
+      {
+         while ((len > 0) && (! checkDone))
+         {
+            if (count == chunk.length)
+            {
+               put(chunk);
+               chunk = new char[CHUNK_SIZE];
+               count = 0;
+            }
+
+            final int part = Math.min(len, chunk.length - count);
+            System.arraycopy(cbuf, off, chunk, count, part);
+            count += part;
+            off += part;
+            len -= part;
+         }
+      }
+
+      @Override
+      public void write(char[] cbuf, int off, int len) throws IOException
+      {
+         out.write(cbuf, off, len);
+         copy(cbuf, off, len);
+      }
+
+      @Override
+      public void write(String str, int off, int len) throws IOException
+      {
+         out.write(str, off, len);
+
+         char[] copied = new char[len];
+         str.getChars(off, off + len, copied, 0);
+         copy(copied, 0, len);
+      }
+
+      @Override
+      public void flush() throws IOException
+      {
+         out.flush();
+      }
+
+      @Override
+      public void close() throws IOException
+      {
+         if (closed)
+         {
+            return;
+         }
+         closed = true;
+
+         try
+         {
+            out.close();
+         }
+         finally
+         {
+            if (count > 0)
+            {
+               char[] last = new char[count];
+               System.arraycopy(chunk, 0, last, 0, count);
+               put(last);
+            }
+            put(END_OF_OUTPUT);
+         }
+      }
+   }
+
+   private class ChunkReader extends Reader
+   {
+      private char[] chunk = null;
+      private int position = 0;
+      private boolean ended = false;
+
+      @Override
+      public int read(char[] cbuf, int off, int len) throws IOException
+      {
+         if (ended)
+         {
+            return -1;
+         }
+
+         if (len == 0)
+         {
+            return 0;
+         }
+
+         if ((chunk != null) && (position == chunk.length))
+         {
+            chunk = null;
+         }
+
+         if (chunk == null)
+         {
+            try
+            {
+               chunk = chunks.take();
+               position = 0;
+            }
+            catch (InterruptedException ie)
+            {
+               Thread.currentThread().interrupt();
+               throw new IOException("Interrupted while checking the output", ie);
+            }
+         }
+
+         if (chunk == END_OF_OUTPUT)
+         {
+            ended = true;
+            return -1;
+         }
+
+         final int part = Math.min(len, chunk.length - position);
+         System.arraycopy(chunk, position, cbuf, off, part);
+         position += part;
+         return part;
+      }
+
+      @Override
+      public void close()
+      {
+      }
+   }
+}
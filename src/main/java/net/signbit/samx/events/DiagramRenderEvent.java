@@ -0,0 +1,42 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.events;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("net.signbit.samx.DiagramRender")
+@Label("Diagram Render")
+@Category("SAMx")
+@Description("Rendering of one diagram code block into an image")
+final class DiagramRenderEvent extends Event
+{
+   @Label("Image File")
+   String file;
+
+   @Label("Language")
+   String language;
+
+   @Label("Outcome")
+   String outcome;
+
+   @Label("Bytes")
+   long bytes;
+}
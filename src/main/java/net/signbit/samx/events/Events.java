@@ -0,0 +1,153 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.events;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+
+import net.signbit.samx.visitors.VisitorUtils;
+
+/*
+ * Java Flight Recorder events for parsing, includes, rendering of top level
+ * blocks, validation, code extraction and diagram rendering; record them with
+ * -XX:StartFlightRecording and look for the "SAMx" category.
+ *
+ * The begin methods return a handle to pass to the matching commit method,
+ * or null when the runtime has no Flight Recorder or the event is disabled in
+ * the recording settings; the commit methods accept null and do nothing, so
+ * the cost without a recording is one check.
+ */
+public final class Events
+{
+   private static final boolean AVAILABLE = isFlightRecorderPresent();
+
+   private Events()
+   {
+   }
+
+   private static boolean isFlightRecorderPresent()
+   {
+      try
+      {
+         Class.forName("jdk.jfr.Event", false, Events.class.getClassLoader());
+         return true;
+      }
+      catch (ClassNotFoundException | LinkageError e)
+      {
+         return false;
+      }
+   }
+
+   public static Object beginParse()
+   {
+      return AVAILABLE ? FlightEvents.beginParse() : null;
+   }
+
+   public static void commitParse(Object event, String file, long characters, int tokens)
+   {
+      if (event != null)
+      {
+         FlightEvents.commitParse(event, file, characters, tokens);
+      }
+   }
+
+   public static Object beginInclude()
+   {
+      return AVAILABLE ? FlightEvents.beginInclude() : null;
+   }
+
+   /*
+    * outcome is one of "parsed", "cached", "missing" or "error"
+    */
+   public static void commitInclude(Object event, String reference, String path, String outcome)
+   {
+      if (event != null)
+      {
+         FlightEvents.commitInclude(event, reference, path, outcome);
+      }
+   }
+
+   public static Object beginRenderBlock()
+   {
+      return AVAILABLE ? FlightEvents.beginRenderBlock() : null;
+   }
+
+   public static void commitRenderBlock(Object event, ParserRuleContext block, long characters)
+   {
+      if (event == null)
+      {
+         return;
+      }
+
+      String file = null;
+      int line = 0;
+
+      final Token start = block.getStart();
+      if (start != null)
+      {
+         line = start.getLine();
+         if (start.getInputStream() != null)
+         {
+            file = start.getInputStream().getSourceName();
+         }
+      }
+
+      FlightEvents.commitRenderBlock(event, file, line, VisitorUtils.getBlockType(block), characters);
+   }
+
+   public static Object beginValidation()
+   {
+      return AVAILABLE ? FlightEvents.beginValidation() : null;
+   }
+
+   public static void commitValidation(Object event, String schema, String document, boolean valid)
+   {
+      if (event != null)
+      {
+         FlightEvents.commitValidation(event, schema, document, valid);
+      }
+   }
+
+   public static Object beginCodeExtraction()
+   {
+      return AVAILABLE ? FlightEvents.beginCodeExtraction() : null;
+   }
+
+   public static void commitCodeExtraction(Object event, String file, String language, int lines, long characters)
+   {
+      if (event != null)
+      {
+         FlightEvents.commitCodeExtraction(event, file, language, lines, characters);
+      }
+   }
+
+   public static Object beginDiagramRender()
+   {
+      return AVAILABLE ? FlightEvents.beginDiagramRender() : null;
+   }
+
+   /*
+    * outcome is one of "rendered", "cached" or "error"
+    */
+   public static void commitDiagramRender(Object event, String file, String language, String outcome, long bytes)
+   {
+      if (event != null)
+      {
+         FlightEvents.commitDiagramRender(event, file, language, outcome, bytes);
+      }
+   }
+}
@@ -0,0 +1,148 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.events;
+
+import jdk.jfr.Event;
+
+/*
+ * The part of Events that refers to jdk.jfr; only loaded when the runtime
+ * has Flight Recorder.
+ */
+final class FlightEvents
+{
+   static Object beginParse()
+   {
+      return begin(new ParseEvent());
+   }
+
+   static Object beginInclude()
+   {
+      return begin(new IncludeEvent());
+   }
+
+   static Object beginRenderBlock()
+   {
+      return begin(new RenderBlockEvent());
+   }
+
+   static Object beginValidation()
+   {
+      return begin(new ValidationEvent());
+   }
+
+   static Object beginCodeExtraction()
+   {
+      return begin(new CodeExtractionEvent());
+   }
+
+   static Object beginDiagramRender()
+   {
+      return begin(new DiagramRenderEvent());
+   }
+
+   private static Event begin(Event event)
+   {
+      if (! event.isEnabled())
+      {
+         return null;
+      }
+
+      event.begin();
+      return event;
+   }
+
+   static void commitParse(Object handle, String file, long characters, int tokens)
+   {
+      ParseEvent event = (ParseEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.file = file;
+         event.characters = characters;
+         event.tokens = tokens;
+         event.commit();
+      }
+   }
+
+   static void commitInclude(Object handle, String reference, String path, String outcome)
+   {
+      IncludeEvent event = (IncludeEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.reference = reference;
+         event.path = path;
+         event.outcome = outcome;
+         event.commit();
+      }
+   }
+
+   static void commitRenderBlock(Object handle, String file, int line, String blockType, long characters)
+   {
+      RenderBlockEvent event = (RenderBlockEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.file = file;
+         event.line = line;
+         event.blockType = blockType;
+         event.characters = characters;
+         event.commit();
+      }
+   }
+
+   static void commitValidation(Object handle, String schema, String document, boolean valid)
+   {
+      ValidationEvent event = (ValidationEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.schema = schema;
+         event.document = document;
+         event.valid = valid;
+         event.commit();
+      }
+   }
+
+   static void commitCodeExtraction(Object handle, String file, String language, int lines, long characters)
+   {
+      CodeExtractionEvent event = (CodeExtractionEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.file = file;
+         event.language = language;
+         event.lines = lines;
+         event.characters = characters;
+         event.commit();
+      }
+   }
+
+   static void commitDiagramRender(Object handle, String file, String language, String outcome, long bytes)
+   {
+      DiagramRenderEvent event = (DiagramRenderEvent) handle;
+      event.end();
+      if (event.shouldCommit())
+      {
+         event.file = file;
+         event.language = language;
+         event.outcome = outcome;
+         event.bytes = bytes;
+         event.commit();
+      }
+   }
+}
@@ -35,7 +35,7 @@ import net.signbit.samx.Parser;
 import net.signbit.samx.parser.SamXParser;
 import net.signbit.samx.visitors.AttributeVisitor;
 import net.signbit.samx.visitors.PlainTextVisitor;
-import net.signbit.samx.visitors.RecordSetVisitor;
+import net.signbit.samx.visitors.RecordSetColumns;
 import net.signbit.samx.visitors.RendererVisitor;
 
 public class CppVisitor extends RendererVisitor
@@ -68,7 +68,7 @@ public class CppVisitor extends RendererVisitor
          final SamXParser.FlowContext fc = rdc.optionalFlow(index).flow();
          if (fc != null)
          {
-            return Integer.parseInt(fc.getText());
+            return Integer.parseInt(getDerivedData().getText(fc));
          }
          else
          {
@@ -126,7 +126,8 @@ public class CppVisitor extends RendererVisitor
          name = getString(rdc, 4);
          description = getString(rdc, 5);
 
-         this.bitOffset = bitOffset;
+         // a field in a unit past the current one starts that unit, after any unused bits of the current one
+         this.bitOffset = (this.unitOffset > unitOffset) ? 0 : bitOffset;
       }
 
       public String getName()
@@ -181,6 +182,25 @@ public class CppVisitor extends RendererVisitor
       {
          return bitOffset;
       }
+
+      /*
+       * the distance from the least significant bit of the unit to the field;
+       * StructureDefinition rejects the fields that do not fit in their unit
+       */
+      public int getShift()
+      {
+         return unitWidth - width - bitOffset;
+      }
+
+      /*
+       * the mask of the field value, as a C++ literal; computed here so a
+       * field as wide as the unit does not shift by the unit width
+       */
+      public String getMask()
+      {
+         final long mask = (width >= 64) ? -1L : (1L << width) - 1L;
+         return String.format("0x%XU", mask);
+      }
    }
 
    private ArrayList<StructureMember> structureMembers = new ArrayList<>();
@@ -206,7 +226,7 @@ public class CppVisitor extends RendererVisitor
 
       for (SamXParser.BlockContext bc : ctx.block())
       {
-         visit(bc);
+         visitTopLevelBlock(bc);
       }
 
       document.add("namespace", namespace);
@@ -257,10 +277,7 @@ public class CppVisitor extends RendererVisitor
 
       public StructureDefinition(SamXParser.RecordSetContext ctx)
       {
-         RecordSetVisitor visitor = new RecordSetVisitor(getTokenStream());
-         RecordSetVisitor.RecordSet rs = (RecordSetVisitor.RecordSet) visitor.visitRecordSet(ctx);
-
-         final String unitWidthHeader = rs.getHeader().getAttributes().get(0);
+         final String unitWidthHeader = ctx.headerRow().NAME(0).getText();
          unitWidth = unitWidths.getOrDefault(unitWidthHeader, 0);
 
          int unitCount = 0;
@@ -278,8 +295,14 @@ public class CppVisitor extends RendererVisitor
 
                StructureMember sm = new StructureMember(rdc, unitCount, bitOffset, unitWidth);
 
-               bitOffset += sm.width;
-               if (bitOffset == 32)
+               // a field spanning two units would get a negative shift
+               if ((sm.width <= 0) || (sm.bitOffset + sm.width > unitWidth))
+               {
+                  throw new RuntimeException(String.format("line %d: field %s (bits %d to %d) does not fit in a %d-bit unit", rdc.start.getLine(), sm.field, sm.bitOffset, sm.bitOffset + sm.width - 1, unitWidth));
+               }
+
+               bitOffset = sm.bitOffset + sm.width;
+               if (bitOffset == unitWidth)
                {
                   bitOffset = 0;
                }
@@ -404,6 +427,28 @@ public class CppVisitor extends RendererVisitor
       return sb.toString();
    }
 
+   private static RecordSetColumns.Column getColumn(RecordSetColumns columns, FieldIndices field)
+   {
+      return columns.getColumn(field.ordinal());
+   }
+
+   private static String getText(RecordSetColumns columns, FieldIndices field, int row)
+   {
+      return getColumn(columns, field).getText(row);
+   }
+
+   /*
+    * the column of a field that has one value for the whole group
+    */
+   private static RecordSetColumns.Column getSingleValueColumn(RecordSetColumns columns, int group, FieldIndices field)
+   {
+      if (! columns.hasSingleValue(group, field.ordinal()))
+      {
+         throw new RuntimeException("Multiple values found");
+      }
+      return getColumn(columns, field);
+   }
+
    class BitField
    {
       final int word;
@@ -414,23 +459,22 @@ public class CppVisitor extends RendererVisitor
       final String enumType;
       final ArrayList<EnumerationValue> values = new ArrayList<>();
 
-      public BitField(RecordSetVisitor.RecordDataGroup rdg)
+      public BitField(RecordSetColumns columns, int group)
       {
-         final String wordText = rdg.getValue(FieldIndices.Word.ordinal(), plainTextVisitor);
-         word = NumberUtils.createInteger(wordText);
-         final String offsetText = rdg.getValue(FieldIndices.Offset.ordinal(), plainTextVisitor);
-         offset = NumberUtils.createInteger(offsetText);
-         final String widthText = rdg.getValue(FieldIndices.Width.ordinal(), plainTextVisitor);
-         width = NumberUtils.createInteger(widthText);
-         name = rdg.getValue(FieldIndices.Name.ordinal(), plainTextVisitor);
+         final int firstRow = columns.getGroupStart(group);
+
+         word = getSingleValueColumn(columns, group, FieldIndices.Word).getInt(firstRow);
+         offset = getSingleValueColumn(columns, group, FieldIndices.Offset).getInt(firstRow);
+         width = getSingleValueColumn(columns, group, FieldIndices.Width).getInt(firstRow);
+         name = getSingleValueColumn(columns, group, FieldIndices.Name).getText(firstRow);
 
-         if (rdg.getRows().size() > 1)
+         if (columns.getGroupEnd(group) - firstRow > 1)
          {
             enumType = name;
 
-            for (RecordSetVisitor.RecordData rd : rdg.getRows())
+            for (int row = firstRow; row < columns.getGroupEnd(group); ++ row)
             {
-               values.add(new EnumerationValue(rd.getValue(FieldIndices.ValueName.ordinal(), plainTextVisitor), rd.getValue(FieldIndices.Value.ordinal(), plainTextVisitor), rd.getValue(FieldIndices.ValueDescription.ordinal(), plainTextVisitor)));
+               values.add(new EnumerationValue(getText(columns, FieldIndices.ValueName, row), getText(columns, FieldIndices.Value, row), getText(columns, FieldIndices.ValueDescription, row)));
             }
 
             int maxNameLength = 0;
@@ -461,15 +505,12 @@ public class CppVisitor extends RendererVisitor
          }
       }
 
-      public BitField(RecordSetVisitor.RecordData rd)
+      public BitField(int word, int offset, int width, String name)
       {
-         final String wordText = rd.getValue(FieldIndices.Word.ordinal(), plainTextVisitor);
-         word = NumberUtils.createInteger(wordText);
-         final String offsetText = rd.getValue(FieldIndices.Offset.ordinal(), plainTextVisitor);
-         offset = NumberUtils.createInteger(offsetText);
-         final String widthText = rd.getValue(FieldIndices.Width.ordinal(), plainTextVisitor);
-         width = NumberUtils.createInteger(widthText);
-         name = rd.getValue(FieldIndices.Name.ordinal(), plainTextVisitor);
+         this.word = word;
+         this.offset = offset;
+         this.width = width;
+         this.name = name;
 
          enumType = null;
       }
@@ -522,23 +563,22 @@ public class CppVisitor extends RendererVisitor
 
       public BitFieldDefinition(SamXParser.RecordSetContext ctx)
       {
-         RecordSetVisitor visitor = new RecordSetVisitor(getTokenStream());
-         RecordSetVisitor.RecordSet rs = (RecordSetVisitor.RecordSet) visitor.visitRecordSet(ctx);
+         RecordSetColumns columns = new RecordSetColumns(ctx, plainTextVisitor);
 
-         final String unitWidthHeader = rs.getHeader().getAttributes().get(0);
+         final String unitWidthHeader = columns.getColumn(0).getName();
          unitWidth = unitWidths.getOrDefault(unitWidthHeader, 0);
 
-         for (RecordSetVisitor.RecordDataGroup rdg : rs.getGroups())
+         for (int group = 0; group < columns.getGroupCount(); ++ group)
          {
-            if (rdg.hasSingleValue(FieldIndices.Name.ordinal()) && rdg.hasSingleValue(FieldIndices.Offset.ordinal()) && rdg.hasSingleValue(FieldIndices.Offset.ordinal()))
+            if (columns.hasSingleValue(group, FieldIndices.Name.ordinal()) && columns.hasSingleValue(group, FieldIndices.Offset.ordinal()) && columns.hasSingleValue(group, FieldIndices.Offset.ordinal()))
             {
-               fields.add(new BitField(rdg));
+               fields.add(new BitField(columns, group));
             }
             else
             {
-               for (RecordSetVisitor.RecordData rd : rdg.getRows())
+               for (int row = columns.getGroupStart(group); row < columns.getGroupEnd(group); ++ row)
                {
-                  fields.add(new BitField(rd));
+                  fields.add(new BitField(getColumn(columns, FieldIndices.Word).getInt(row), getColumn(columns, FieldIndices.Offset).getInt(row), getColumn(columns, FieldIndices.Width).getInt(row), getText(columns, FieldIndices.Name, row)));
                }
             }
          }
@@ -57,7 +57,7 @@ public class GenerateHeader extends Renderer
    protected void addCustomOptions(CommandLine cmd)
    {
       visitor.setNamespace(cmd.getOptionValue("namespace"));
-      visitor.setOutputName(cmd.getOptionValue("output"));
+      visitor.setOutputName(getOutputPath());
    }
 
    @Override
@@ -107,6 +107,11 @@ public class AttributeVisitor extends SamXParserBaseVisitor<Void>
 
    @Override
    public String toString()
+   {
+      return render(docBookMode);
+   }
+
+   String render(boolean asDocBook)
    {
       StringBuilder builder = new StringBuilder();
 
@@ -119,7 +124,7 @@ public class AttributeVisitor extends SamXParserBaseVisitor<Void>
 
       if (! classAttributes.isEmpty())
       {
-         if (docBookMode)
+         if (asDocBook)
          {
             builder.append("role=\"");
          }
@@ -152,7 +157,7 @@ public class AttributeVisitor extends SamXParserBaseVisitor<Void>
             builder.append(' ');
          }
 
-         if (docBookMode)
+         if (asDocBook)
          {
             builder.append("xml:id=\"");
          }
@@ -0,0 +1,217 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.io.PrintStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+
+/*
+ * Render time and output size of every block, aggregated by block type and
+ * by the location of the block in the input.
+ *
+ * Blocks nest, and the visitors of included documents run inside the
+ * include block; the self figures of a block exclude those of the blocks
+ * rendered inside it, so they add up to the total. Each thread keeps its own
+ * stack of blocks, so the blocks rendered in parallel are measured
+ * separately; their times then add up to more than the wall time.
+ *
+ * The total time of a location includes the blocks nested in it; it is
+ * only reported per location, where it shows the cost of a whole subtree.
+ */
+public class BlockProfile
+{
+   public static final int DEFAULT_TOP_COUNT = 20;
+
+   static final class Frame
+   {
+      final ParserRuleContext block;
+
+      final long startNanos;
+      final long startCharacters;
+
+      long childNanos = 0;
+      long childCharacters = 0;
+
+      Frame(ParserRuleContext block, long startCharacters)
+      {
+         this.block = block;
+         this.startCharacters = startCharacters;
+         startNanos = System.nanoTime();
+      }
+   }
+
+   private static final class Totals
+   {
+      final String blockType;
+
+      long count = 0;
+      long selfNanos = 0;
+      long totalNanos = 0;
+      long selfCharacters = 0;
+
+      Totals(String blockType)
+      {
+         this.blockType = blockType;
+      }
+   }
+
+   private final ThreadLocal<ArrayDeque<Frame>> frames = ThreadLocal.withInitial(ArrayDeque::new);
+
+   private final HashMap<String, Totals> byType = new HashMap<>();
+   private final HashMap<String, Totals> byLocation = new HashMap<>();
+
+   Frame begin(ParserRuleContext block, long charactersWritten)
+   {
+      Frame frame = new Frame(block, charactersWritten);
+      frames.get().push(frame);
+      return frame;
+   }
+
+   /*
+    * resultLength is the length of the text returned by the visit, for the
+    * visitors that return the rendered block instead of writing it
+    */
+   void end(Frame frame, long charactersWritten, long resultLength)
+   {
+      final long nanos = System.nanoTime() - frame.startNanos;
+      final long characters = charactersWritten - frame.startCharacters + resultLength;
+
+      final ArrayDeque<Frame> stack = frames.get();
+
+      // blocks left open by an exception are closed along with their parent
+      while ((! stack.isEmpty()) && (stack.peek() != frame))
+      {
+         stack.pop();
+      }
+      stack.poll();
+
+      final Frame parent = stack.peek();
+      if (parent != null)
+      {
+         parent.childNanos += nanos;
+         parent.childCharacters += characters;
+      }
+
+      final long selfNanos = nanos - frame.childNanos;
+      final long selfCharacters = Math.max(0, characters - frame.childCharacters);
+
+      final String blockType = VisitorUtils.getBlockType(frame.block);
+      final String location = getLocation(frame.block);
+
+      synchronized (this)
+      {
+         add(byType.computeIfAbsent(blockType, Totals::new), selfNanos, nanos, selfCharacters);
+         add(byLocation.computeIfAbsent(location, key -> new Totals(blockType)), selfNanos, nanos, selfCharacters);
+      }
+   }
+
+   private static void add(Totals totals, long selfNanos, long totalNanos, long selfCharacters)
+   {
+      totals.count++;
+      totals.selfNanos += selfNanos;
+      totals.totalNanos += totalNanos;
+      totals.selfCharacters += selfCharacters;
+   }
+
+   private static String getLocation(ParserRuleContext block)
+   {
+      final Token start = block.getStart();
+      if (start == null)
+      {
+         return "?";
+      }
+
+      String file = "?";
+      if ((start.getInputStream() != null) && (start.getInputStream().getSourceName() != null))
+      {
+         file = start.getInputStream().getSourceName();
+      }
+
+      return file + ":" + start.getLine();
+   }
+
+   private static String millis(long nanos)
+   {
+      return String.format("%.3f", nanos / 1e6);
+   }
+
+   private static String percent(long part, long whole)
+   {
+      if (whole == 0)
+      {
+         return "-";
+      }
+      return String.format("%.1f%%", part * 100.0 / whole);
+   }
+
+   private static ArrayList<Map.Entry<String, Totals>> sortBySelfTime(HashMap<String, Totals> totals)
+   {
+      ArrayList<Map.Entry<String, Totals>> entries = new ArrayList<>(totals.entrySet());
+      entries.sort((left, right) -> Long.compare(right.getValue().selfNanos, left.getValue().selfNanos));
+      return entries;
+   }
+
+   public synchronized void report(PrintStream out, int topCount)
+   {
+      long blockCount = 0;
+      long selfNanos = 0;
+      long selfCharacters = 0;
+      for (Totals totals : byType.values())
+      {
+         blockCount += totals.count;
+         selfNanos += totals.selfNanos;
+         selfCharacters += totals.selfCharacters;
+      }
+
+      out.println(String.format("Block profile: %d blocks, %s ms, %d characters", blockCount, millis(selfNanos), selfCharacters));
+
+      out.println();
+      out.println(String.format("%-20s %8s %12s %7s %12s", "block type", "count", "self ms", "self", "characters"));
+      for (Map.Entry<String, Totals> entry : sortBySelfTime(byType))
+      {
+         final Totals totals = entry.getValue();
+         out.println(String.format("%-20s %8d %12s %7s %12d",
+               entry.getKey(), totals.count, millis(totals.selfNanos), percent(totals.selfNanos, selfNanos),
+               totals.selfCharacters));
+      }
+
+      out.println();
+      out.println(String.format("%-20s %8s %12s %7s %12s %12s  %s", "block type", "count", "self ms", "self", "total ms", "characters", "location"));
+      int printed = 0;
+      for (Map.Entry<String, Totals> entry : sortBySelfTime(byLocation))
+      {
+         if (printed == topCount)
+         {
+            break;
+         }
+
+         final Totals totals = entry.getValue();
+         out.println(String.format("%-20s %8d %12s %7s %12s %12d  %s",
+               totals.blockType, totals.count, millis(totals.selfNanos), percent(totals.selfNanos, selfNanos),
+               millis(totals.totalNanos), totals.selfCharacters, entry.getKey()));
+         printed++;
+      }
+
+      out.flush();
+   }
+}
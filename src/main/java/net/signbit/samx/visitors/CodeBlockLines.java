@@ -0,0 +1,186 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.List;
+
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.Token;
+
+import net.signbit.samx.parser.SamXLexer;
+import net.signbit.samx.parser.SamXParser;
+
+/*
+ * Line table of a code block: where the text of each line starts and ends
+ * in the input, and how deeply the line is indented.
+ *
+ * The lines are rendered in one pass into a single string, so the block can
+ * be written out with one call.
+ */
+public class CodeBlockLines
+{
+   private static final String SPACES = "                                                                ";
+
+   private final String text;
+   private final int[] starts;
+   private final int[] ends;
+   private final int[] indents;
+
+   private final int minimumIndent;
+   private final int totalLength;
+
+   public CodeBlockLines(SamXParser.CodeBlockDefContext ctx, BufferedTokenStream tokenStream, SourceText sourceText)
+   {
+      final List<SamXParser.ExternalCodeContext> lines = ctx.externalCode();
+      final int lineCount = lines.size();
+
+      starts = new int[lineCount];
+      ends = new int[lineCount];
+      indents = new int[lineCount];
+
+      findIndents(ctx, lines, tokenStream, indents);
+
+      boolean inSource = (sourceText != null) && (sourceText.getText() != null);
+      for (SamXParser.ExternalCodeContext ecc : lines)
+      {
+         inSource = inSource && sourceText.contains(ecc.EXTCODE().getSymbol());
+      }
+
+      // lines not indexable in the input are copied into a buffer of their own
+      StringBuilder copiedText = inSource ? null : new StringBuilder();
+
+      int minIndent = Integer.MAX_VALUE;
+      int length = 0;
+
+      for (int ii = 0; ii < lineCount; ii++)
+      {
+         final SamXParser.ExternalCodeContext ecc = lines.get(ii);
+         final Token token = ecc.EXTCODE().getSymbol();
+
+         minIndent = Math.min(minIndent, indents[ii]);
+
+         if (inSource)
+         {
+            starts[ii] = token.getStartIndex();
+            ends[ii] = token.getStopIndex() + 1;
+         }
+         else
+         {
+            starts[ii] = copiedText.length();
+            copiedText.append(token.getText());
+            ends[ii] = copiedText.length();
+         }
+
+         length += ends[ii] - starts[ii];
+      }
+
+      text = inSource ? sourceText.getText() : copiedText.toString();
+      minimumIndent = (lineCount == 0) ? 0 : minIndent;
+      totalLength = length;
+   }
+
+   /*
+    * The indentation of a line is the first indentation token after the
+    * previous token on the default channel, as in VisitorUtils.getTokenIndent;
+    * one pass over the tokens of the block finds it for all the lines.
+    */
+   private static void findIndents(SamXParser.CodeBlockDefContext ctx, List<SamXParser.ExternalCodeContext> lines, BufferedTokenStream tokenStream, int[] indents)
+   {
+      if (lines.isEmpty())
+      {
+         return;
+      }
+
+      final int lastToken = lines.get(lines.size() - 1).EXTCODE().getSymbol().getTokenIndex();
+
+      int line = 0;
+      int lineIndent = -1;
+
+      for (int ti = ctx.getStart().getTokenIndex(); ti <= lastToken; ti++)
+      {
+         final Token token = tokenStream.get(ti);
+
+         if (ti == lines.get(line).EXTCODE().getSymbol().getTokenIndex())
+         {
+            indents[line] = Math.max(lineIndent, 0);
+            line++;
+            lineIndent = -1;
+         }
+         else if (token.getChannel() == SamXLexer.INDENTS)
+         {
+            if (lineIndent < 0)
+            {
+               lineIndent = token.getText().length();
+            }
+         }
+         else if (token.getChannel() == Token.DEFAULT_CHANNEL)
+         {
+            lineIndent = -1;
+         }
+      }
+   }
+
+   public int getLineCount()
+   {
+      return starts.length;
+   }
+
+   public int getIndent(int line)
+   {
+      return indents[line];
+   }
+
+   /*
+    * indentation of the leftmost line
+    */
+   public int getMinimumIndent()
+   {
+      return minimumIndent;
+   }
+
+   public String render(int baseIndent, String lineSeparator)
+   {
+      return render(baseIndent, "", lineSeparator);
+   }
+
+   /*
+    * The lines, each preceded by linePrefix and by the indentation in excess
+    * of baseIndent, and followed by lineSeparator.
+    */
+   public String render(int baseIndent, String linePrefix, String lineSeparator)
+   {
+      StringBuilder builder = new StringBuilder(totalLength + getLineCount() * (linePrefix.length() + lineSeparator.length() + 4));
+
+      for (int ii = 0; ii < starts.length; ii++)
+      {
+         builder.append(linePrefix);
+
+         int padding = indents[ii] - baseIndent;
+         while (padding > 0)
+         {
+            final int chunk = Math.min(padding, SPACES.length());
+            builder.append(SPACES, 0, chunk);
+            padding -= chunk;
+         }
+
+         builder.append(text, starts[ii], ends[ii]);
+         builder.append(lineSeparator);
+      }
+
+      return builder.toString();
+   }
+}
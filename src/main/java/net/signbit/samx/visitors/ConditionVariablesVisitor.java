@@ -0,0 +1,162 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import net.signbit.samx.parser.SamXParser;
+import net.signbit.samx.parser.SamXParserBaseVisitor;
+
+/*
+ * Collects every variable tested by a condition, together with the values
+ * it is compared against. Two variants that agree on all the collected
+ * tests produce identical output.
+ */
+public class ConditionVariablesVisitor extends SamXParserBaseVisitor<Void>
+{
+   public static class Variable
+   {
+      boolean testedTrue = false;
+      boolean testedFalse = false;
+      final TreeSet<String> values = new TreeSet<>();
+
+      /*
+       * mirrors the evaluation in RendererVisitor
+       */
+      String getSignature(String name, Properties properties, Set<String> trueFlags, Set<String> falseFlags)
+      {
+         StringBuilder builder = new StringBuilder();
+
+         final Object configuredValue = properties.get(name);
+
+         if (testedTrue)
+         {
+            final boolean isTrue = trueFlags.contains(name) || "true".equals(configuredValue);
+            builder.append(isTrue ? 'T' : 't');
+         }
+
+         if (testedFalse)
+         {
+            final boolean isFalse = falseFlags.contains(name) || "false".equals(configuredValue);
+            builder.append(isFalse ? 'F' : 'f');
+         }
+
+         if (! values.isEmpty())
+         {
+            if (configuredValue == null)
+            {
+               builder.append('_');
+            }
+            else if (values.contains(configuredValue))
+            {
+               builder.append('=');
+               builder.append(configuredValue);
+            }
+            else
+            {
+               builder.append('*');
+            }
+         }
+
+         return builder.toString();
+      }
+
+      public Set<String> getValues()
+      {
+         return values;
+      }
+   }
+
+   private final TreeMap<String, Variable> variables = new TreeMap<>();
+
+   private Variable getVariable(Token token)
+   {
+      return variables.computeIfAbsent(token.getText(), key -> new Variable());
+   }
+
+   public TreeMap<String, Variable> getVariables()
+   {
+      return variables;
+   }
+
+   /*
+    * returns a key that is identical for all variants rendering the same output
+    */
+   public String getSignature(Properties properties, Set<String> trueFlags, Set<String> falseFlags)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      for (String name : variables.keySet())
+      {
+         builder.append(name);
+         builder.append(':');
+         builder.append(variables.get(name).getSignature(name, properties, trueFlags, falseFlags));
+         builder.append(';');
+      }
+
+      return builder.toString();
+   }
+
+   @Override
+   public Void visitBooleanTrueCondition(SamXParser.BooleanTrueConditionContext ctx)
+   {
+      getVariable(ctx.variable).testedTrue = true;
+      return null;
+   }
+
+   @Override
+   public Void visitBooleanFalseCondition(SamXParser.BooleanFalseConditionContext ctx)
+   {
+      getVariable(ctx.variable).testedFalse = true;
+      return null;
+   }
+
+   @Override
+   public Void visitComparisonCondition(SamXParser.ComparisonConditionContext ctx)
+   {
+      getVariable(ctx.variable).values.add(ctx.value.getText());
+      return null;
+   }
+
+   @Override
+   public Void visitBelongsToSetCondition(SamXParser.BelongsToSetConditionContext ctx)
+   {
+      final Variable variable = getVariable(ctx.variable);
+      for (TerminalNode tn : ctx.nameList().NAME())
+      {
+         variable.values.add(tn.getText());
+      }
+      return null;
+   }
+
+   @Override
+   public Void visitNotBelongsToSetCondition(SamXParser.NotBelongsToSetConditionContext ctx)
+   {
+      final Variable variable = getVariable(ctx.variable);
+      for (TerminalNode tn : ctx.nameList().NAME())
+      {
+         variable.values.add(tn.getText());
+      }
+      return null;
+   }
+}
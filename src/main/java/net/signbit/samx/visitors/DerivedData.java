@@ -0,0 +1,118 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import net.signbit.samx.parser.SamXParser;
+
+/*
+ * Side tables for data derived from the parse tree of one document: resolved
+ * attributes, plain text and node text. Each entry is computed on first use
+ * and keyed by the context it was derived from.
+ *
+ * The AttributeVisitor instances are shared and must not be modified.
+ */
+public class DerivedData
+{
+   private final SourceText sourceText;
+   private final PlainTextVisitor plainTextVisitor;
+
+   private final ConcurrentHashMap<ParserRuleContext, AttributeVisitor> attributes = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, String> attributeStrings = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, String> docBookAttributeStrings = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, String> plainAttributeStrings = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, String> plainText = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, String> nodeText = new ConcurrentHashMap<>();
+   private final ConcurrentHashMap<ParserRuleContext, CodeBlockLines> codeBlockLines = new ConcurrentHashMap<>();
+
+   public DerivedData(BufferedTokenStream tokenStream)
+   {
+      sourceText = new SourceText(tokenStream);
+      plainTextVisitor = new PlainTextVisitor(sourceText);
+   }
+
+   public SourceText getSourceText()
+   {
+      return sourceText;
+   }
+
+   /*
+    * attributes attached directly to prc
+    */
+   public AttributeVisitor getAttributes(ParserRuleContext prc)
+   {
+      return attributes.computeIfAbsent(prc, key ->
+      {
+         AttributeVisitor attributeVisitor = new AttributeVisitor();
+         for (SamXParser.AttributeContext ac : key.getRuleContexts(SamXParser.AttributeContext.class))
+         {
+            attributeVisitor.visit(ac);
+         }
+         return attributeVisitor;
+      });
+   }
+
+   /*
+    * attributes attached directly to prc, rendered as XML attributes
+    */
+   public String getAttributeString(ParserRuleContext prc, boolean docBookMode)
+   {
+      if (docBookMode)
+      {
+         return docBookAttributeStrings.computeIfAbsent(prc, key -> getAttributes(key).render(true));
+      }
+      else
+      {
+         return attributeStrings.computeIfAbsent(prc, key -> getAttributes(key).render(false));
+      }
+   }
+
+   /*
+    * attributes attached directly to prc, rendered in SAMx syntax
+    */
+   public String getAttributesPlain(ParserRuleContext prc)
+   {
+      return plainAttributeStrings.computeIfAbsent(prc, key -> getAttributes(key).toPlainString());
+   }
+
+   public String getPlainText(SamXParser.FlowContext fc)
+   {
+      return plainText.computeIfAbsent(fc, key -> plainTextVisitor.visitFlow(fc).toString());
+   }
+
+   public String getPlainText(SamXParser.TextContext tc)
+   {
+      return plainText.computeIfAbsent(tc, key -> plainTextVisitor.visitText(tc).toString());
+   }
+
+   public CodeBlockLines getCodeBlockLines(SamXParser.CodeBlockDefContext cbdc)
+   {
+      return codeBlockLines.computeIfAbsent(cbdc, key -> new CodeBlockLines(cbdc, sourceText.getTokenStream(), sourceText));
+   }
+
+   /*
+    * the concatenated text of all the tokens under ctx
+    */
+   public String getText(ParserRuleContext ctx)
+   {
+      return nodeText.computeIfAbsent(ctx, ParserRuleContext::getText);
+   }
+}
@@ -17,34 +17,201 @@
 package net.signbit.samx.visitors;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
 
+import net.signbit.samx.OutputFiles;
+import net.signbit.samx.Parser;
+import net.signbit.samx.events.Events;
 import net.signbit.samx.parser.SamXParser;
 import net.signbit.samx.parser.SamXParserBaseVisitor;
 
+/*
+ * Extracts the code blocks into files named after their ids.
+ *
+ * The blocks are collected first, following the includes when they are
+ * known; the files are then written in parallel, and only if their content
+ * changed, so the timestamps of the unchanged ones stay put for make.
+ */
 public class EmbeddedCodeVisitor extends SamXParserBaseVisitor<StringBuilder>
 {
+   public static final class CodeFile
+   {
+      private final File file;
+      private final String language;
+      private final String code;
+      private final int lineCount;
+      private final File imageFile;
+
+      private String hash = null;
+      private boolean written = false;
+      private IOException exception = null;
+
+      private CodeFile(File file, String language, String code, int lineCount, File imageFile)
+      {
+         this.file = file;
+         this.language = language;
+         this.code = code;
+         this.lineCount = lineCount;
+         this.imageFile = imageFile;
+      }
+
+      public File getFile()
+      {
+         return file;
+      }
+
+      public String getLanguage()
+      {
+         return language;
+      }
+
+      public String getCode()
+      {
+         return code;
+      }
+
+      /*
+       * the image inserted with the block, or null for a plain code block
+       */
+      public File getImageFile()
+      {
+         return imageFile;
+      }
+
+      public int getLength()
+      {
+         return code.length();
+      }
+
+      /*
+       * the SHA-256 of the file contents, known once written; null if the write failed
+       */
+      public String getHash()
+      {
+         return hash;
+      }
+
+      /*
+       * false if the file already held the code
+       */
+      public boolean isWritten()
+      {
+         return written;
+      }
+
+      public IOException getException()
+      {
+         return exception;
+      }
+   }
+
    private final BufferedTokenStream tokenStream;
+   private final SourceText sourceText;
    private final File parentDir;
    private final HashSet<String> elements;
 
+   private HashMap<String, Parser.Result> includedDocuments = null;
+   private HashMap<String, String> referencePaths = null;
+
+   // shared with the visitors of the included documents; a block extracted
+   // again to the same file replaces the earlier one
+   private LinkedHashMap<File, CodeFile> codeFiles = new LinkedHashMap<>();
 
    public EmbeddedCodeVisitor(BufferedTokenStream tokenStream, File parentDir, String[] elements)
    {
-      this.tokenStream = tokenStream;
-      this.parentDir = parentDir;
-      this.elements = new HashSet<>();
+      this(tokenStream, parentDir, new HashSet<>());
       if (elements != null)
       {
          this.elements.addAll(Arrays.asList(elements));
       }
    }
 
+   private EmbeddedCodeVisitor(BufferedTokenStream tokenStream, File parentDir, HashSet<String> elements)
+   {
+      this.tokenStream = tokenStream;
+      this.sourceText = new SourceText(tokenStream);
+      this.parentDir = parentDir;
+      this.elements = elements;
+   }
+
+   /*
+    * makes the visitor extract the code blocks of the included documents
+    */
+   public void setIncludes(HashMap<String, Parser.Result> docDict, HashMap<String, String> referenceDict)
+   {
+      includedDocuments = docDict;
+      referencePaths = referenceDict;
+   }
+
+   /*
+    * the code blocks found by visiting the document, in document order
+    */
+   public List<CodeFile> getCodeFiles()
+   {
+      return new ArrayList<>(codeFiles.values());
+   }
+
+   /*
+    * writes the files of the code blocks found by visiting the document, on
+    * the common fork-join pool; returns them in document order
+    */
+   public List<CodeFile> write()
+   {
+      return codeFiles.values().parallelStream().map(EmbeddedCodeVisitor::writeCodeFile).collect(Collectors.toList());
+   }
+
+   private static CodeFile writeCodeFile(CodeFile codeFile)
+   {
+      final Object event = Events.beginCodeExtraction();
+
+      final byte[] contents = codeFile.code.getBytes(StandardCharsets.UTF_8);
+
+      try
+      {
+         codeFile.written = OutputFiles.writeIfChanged(codeFile.file, contents);
+         codeFile.hash = OutputFiles.sha256(contents);
+      }
+      catch (IOException ioe)
+      {
+         codeFile.exception = ioe;
+      }
+
+      Events.commitCodeExtraction(event, codeFile.file.getPath(), codeFile.language, codeFile.lineCount, codeFile.code.length());
+
+      return codeFile;
+   }
+
+   /*
+    * the hash and path of each file, one per line, in the format of sha256sum
+    */
+   public static String getManifest(List<CodeFile> codeFiles)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      for (CodeFile codeFile : codeFiles)
+      {
+         if (codeFile.hash != null)
+         {
+            builder.append(codeFile.hash);
+            builder.append("  ");
+            builder.append(codeFile.file.getPath());
+            builder.append('\n');
+         }
+      }
+
+      return builder.toString();
+   }
+
    @Override
    public StringBuilder visitDocument(SamXParser.DocumentContext ctx)
    {
@@ -69,6 +236,12 @@ public class EmbeddedCodeVisitor extends SamXParserBaseVisitor<StringBuilder>
 
    @Override
    public StringBuilder visitCodeBlockDef(SamXParser.CodeBlockDefContext ctx)
+   {
+      addCodeBlock(ctx, null);
+      return null;
+   }
+
+   private void addCodeBlock(SamXParser.CodeBlockDefContext ctx, File imageFile)
    {
       AttributeVisitor attributeVisitor = new AttributeVisitor();
       attributeVisitor.visit(ctx.metadata());
@@ -80,50 +253,43 @@ public class EmbeddedCodeVisitor extends SamXParserBaseVisitor<StringBuilder>
       if ((! elements.isEmpty()) && (! elements.contains(fileStem)))
       {
          System.out.println(String.format("Skipping unselected element %s (%s)", fileStem, fileExtension));
-         return null;
+         return;
       }
 
       final File outputFile = new File(parentDir, fileStem + "." + fileExtension);
 
-      try
-      {
-         System.out.println("Writing " + outputFile.getCanonicalPath());
-
-         final FileWriter writer = new FileWriter(outputFile);
+      final CodeBlockLines lines = new CodeBlockLines(ctx, tokenStream, sourceText);
 
-         /*
-          * find the leftmost code line - that will become column 0
-          */
-         int codeBlockIndent = 65536;
-         for (SamXParser.ExternalCodeContext ecc : ctx.externalCode())
-         {
-            final int codeLineIndent = VisitorUtils.getTokenIndent(ecc, tokenStream);
-            if (codeBlockIndent > codeLineIndent)
-            {
-               codeBlockIndent = codeLineIndent;
-            }
-         }
+      // the leftmost code line becomes column 0
+      final String code = lines.render(lines.getMinimumIndent(), "\n");
 
-         for (SamXParser.ExternalCodeContext ecc : ctx.externalCode())
-         {
-            final int codeLineIndent = VisitorUtils.getTokenIndent(ecc, tokenStream);
+      codeFiles.remove(outputFile);
+      codeFiles.put(outputFile, new CodeFile(outputFile, fileExtension, code, lines.getLineCount(), imageFile));
+   }
 
-            for (int ii = codeBlockIndent; ii < codeLineIndent; ++ ii)
-            {
-               writer.append(' ');
-            }
+   @Override
+   public StringBuilder visitIncludeFile(SamXParser.IncludeFileContext ctx)
+   {
+      if (includedDocuments == null)
+      {
+         return null;
+      }
 
-            writer.append(ecc.EXTCODE().getText());
-            writer.append('\n');
-         }
+      final String reference = ctx.reference.getText();
 
-         writer.close();
-      }
-      catch (IOException ioe)
+      final Parser.Result includedResult = includedDocuments.get(referencePaths.get(reference));
+      if (includedResult == null)
       {
-         System.err.println("Cannot open file " + outputFile.getAbsolutePath() + " for writing: " + ioe.getMessage());
+         System.err.println("Cannot extract code from missing include " + reference);
+         return null;
       }
 
+      EmbeddedCodeVisitor visitor = new EmbeddedCodeVisitor(includedResult.tokens, parentDir, elements);
+      visitor.setIncludes(includedDocuments, includedResult.referencePaths);
+      visitor.codeFiles = codeFiles;
+
+      visitor.visit(includedResult.document);
+
       return null;
    }
 
@@ -139,7 +305,9 @@ public class EmbeddedCodeVisitor extends SamXParserBaseVisitor<StringBuilder>
    {
       if (ctx.codeBlockDef() != null)
       {
-         visitCodeBlockDef(ctx.codeBlockDef());
+         // the image path is relative to the document being rendered, which
+         // goes to the output directory along with the code
+         addCodeBlock(ctx.codeBlockDef(), new File(parentDir, ctx.text().getText().trim()));
       }
       return null;
    }
@@ -0,0 +1,247 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.RuleNode;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.parser.SamXParser;
+import net.signbit.samx.parser.SamXParserBaseVisitor;
+
+/*
+ * Indexes the fragment definitions of a document and of the documents it
+ * includes, so fragments can be inserted before they are defined.
+ *
+ * Only the definitions the renderer would reach are indexed: the
+ * conditional blocks, blocks and includes that are disabled by the
+ * conditions of the rendering are skipped, as the renderer skips them. The
+ * included documents are followed from the include statements, so a
+ * document that is only included under a false condition contributes no
+ * fragments.
+ *
+ * Each definition records the document that defines it: a fragment defined
+ * in an included document has to be rendered with the tokens, reference
+ * paths and derived data of that document, not of the one inserting it.
+ *
+ * Also keeps the rendered output of the fragments, keyed by the fragment
+ * name, the defining document and the renderer state at the insertion point.
+ */
+public class FragmentIndex
+{
+   public static class Definition
+   {
+      public final SamXParser.DefineFragmentContext context;
+
+      // the included document that defines the fragment; null for the document the index was built from
+      public final Parser.Result document;
+
+      final String documentKey;
+      final BufferedTokenStream tokens;
+      final HashMap<String, String> referencePaths;
+      final DerivedData derivedData;
+
+      Definition(SamXParser.DefineFragmentContext context, Parser.Result document, String documentKey, BufferedTokenStream tokens, HashMap<String, String> referencePaths, DerivedData derivedData)
+      {
+         this.context = context;
+         this.document = document;
+         this.documentKey = documentKey;
+         this.tokens = tokens;
+         this.referencePaths = referencePaths;
+         this.derivedData = derivedData;
+      }
+
+      boolean isDefinedIn(BufferedTokenStream tokenStream)
+      {
+         return tokens == tokenStream;
+      }
+   }
+
+   private final HashMap<String, List<Definition>> definitions = new HashMap<>();
+   private final ConcurrentHashMap<String, String> renderedFragments = new ConcurrentHashMap<>();
+
+   // one side table per defining document, shared by the visitors rendering its fragments
+   private final IdentityHashMap<Parser.Result, DerivedData> includedDerivedData = new IdentityHashMap<>();
+
+   private class IndexVisitor extends SamXParserBaseVisitor<Void>
+   {
+      private final RendererVisitor conditions;
+      private final Map<String, Parser.Result> includedDocuments;
+      private HashMap<String, String> referencePaths;
+
+      // the document being indexed; null for the root document
+      private Parser.Result document = null;
+      private String documentKey = "";
+
+      // the documents being indexed, to stop at include cycles
+      private final HashSet<SamXParser.DocumentContext> openDocuments = new HashSet<>();
+
+      IndexVisitor(RendererVisitor conditions)
+      {
+         this.conditions = conditions;
+         this.includedDocuments = conditions.includedDocuments;
+         this.referencePaths = conditions.referencePaths;
+      }
+
+      @Override
+      public Void visitDocument(SamXParser.DocumentContext ctx)
+      {
+         if (! openDocuments.add(ctx))
+         {
+            return null;
+         }
+
+         visitChildren(ctx);
+
+         openDocuments.remove(ctx);
+         return null;
+      }
+
+      @Override
+      public Void visitChildren(RuleNode node)
+      {
+         if ((node instanceof SamXParser.BlockContext) && conditions.isDisabled((ParserRuleContext) node))
+         {
+            return null;
+         }
+
+         return super.visitChildren(node);
+      }
+
+      @Override
+      public Void visitConditionalBlock(SamXParser.ConditionalBlockContext ctx)
+      {
+         if (conditions.isDisabled(ctx.condition()))
+         {
+            return null;
+         }
+
+         return visitChildren(ctx);
+      }
+
+      @Override
+      public Void visitDefineFragment(SamXParser.DefineFragmentContext ctx)
+      {
+         if (conditions.isDisabled(ctx))
+         {
+            return null;
+         }
+
+         definitions.computeIfAbsent(ctx.name.getText(), key -> new ArrayList<>()).add(makeDefinition(ctx));
+         return visitChildren(ctx);
+      }
+
+      private Definition makeDefinition(SamXParser.DefineFragmentContext ctx)
+      {
+         if (document == null)
+         {
+            return new Definition(ctx, null, documentKey, conditions.tokenStream, conditions.referencePaths, conditions.derivedData);
+         }
+
+         final DerivedData derivedData = includedDerivedData.computeIfAbsent(document, key -> new DerivedData(key.tokens));
+         return new Definition(ctx, document, documentKey, document.tokens, document.referencePaths, derivedData);
+      }
+
+      @Override
+      public Void visitIncludeFile(SamXParser.IncludeFileContext ctx)
+      {
+         if ((includedDocuments == null) || (referencePaths == null) || conditions.isDisabled(ctx))
+         {
+            return null;
+         }
+
+         final String absolutePath = referencePaths.get(ctx.reference.getText());
+         final Parser.Result result = includedDocuments.get(absolutePath);
+         if (result == null)
+         {
+            return null;
+         }
+
+         final HashMap<String, String> savedReferencePaths = referencePaths;
+         final Parser.Result savedDocument = document;
+         final String savedDocumentKey = documentKey;
+         referencePaths = result.referencePaths;
+         document = result;
+         documentKey = absolutePath;
+
+         visit(result.document);
+
+         referencePaths = savedReferencePaths;
+         document = savedDocument;
+         documentKey = savedDocumentKey;
+         return null;
+      }
+
+      /*
+       * no fragments inside these; skip the traversal
+       */
+      @Override
+      public Void visitParagraph(SamXParser.ParagraphContext ctx)
+      {
+         return null;
+      }
+
+      @Override
+      public Void visitRecordSet(SamXParser.RecordSetContext ctx)
+      {
+         return null;
+      }
+
+      @Override
+      public Void visitCodeBlockDef(SamXParser.CodeBlockDefContext ctx)
+      {
+         return null;
+      }
+   }
+
+   /*
+    * the conditions are evaluated by the renderer that creates the index;
+    * they depend only on the properties and flags, which are the same for
+    * the whole rendering; document is the one rendered by it
+    */
+   public FragmentIndex(RendererVisitor conditions, SamXParser.DocumentContext document)
+   {
+      IndexVisitor visitor = new IndexVisitor(conditions);
+
+      visitor.visit(document);
+   }
+
+   public List<Definition> getDefinitions(String name)
+   {
+      return definitions.getOrDefault(name, Collections.emptyList());
+   }
+
+   String getRendered(String key)
+   {
+      return renderedFragments.get(key);
+   }
+
+   void putRendered(String key, String rendered)
+   {
+      renderedFragments.put(key, rendered);
+   }
+}
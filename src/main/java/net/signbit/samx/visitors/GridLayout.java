@@ -0,0 +1,142 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * Placement of the cells of a general grid group, shared by the renderers.
+ *
+ * Every position of the grid is a bit in two packed bitmaps, at
+ * row * columnCount + column: one marks the positions that continue the cell
+ * to their left, the other the positions covered by a cell spanning down
+ * from a row above. Each cell marks the positions it spans once, so the
+ * layout takes time linear in the area of the grid however many spans it
+ * has, and a renderer skips a run of covered positions with one scan.
+ *
+ * Rows that are not enabled take no part in the layout: a cell spanning down
+ * covers the next enabled rows.
+ */
+final class GridLayout
+{
+   private final int columnCount;
+
+   private final BitSet continued;
+   private final BitSet covered;
+
+   /*
+    * enabledRows is null when all the rows are rendered; the cells spanning
+    * down only cover the rows below them if placeRowSpans is set
+    */
+   GridLayout(List<GridVisitor.GeneralGridRow> rows, int columnCount, boolean[] enabledRows, boolean placeRowSpans)
+   {
+      this.columnCount = columnCount;
+
+      final int rowCount = rows.size();
+      continued = new BitSet(rowCount * columnCount);
+      covered = new BitSet(rowCount * columnCount);
+
+      for (int row = 0; row < rowCount; ++ row)
+      {
+         final List<GridVisitor.GridCell> cells = rows.get(row).cells;
+         final int rowColumns = Math.min(columnCount, cells.size());
+         for (int column = 1; column < rowColumns; ++ column)
+         {
+            if (cells.get(column) == cells.get(column - 1))
+            {
+               continued.set(row * columnCount + column);
+            }
+         }
+      }
+
+      if (placeRowSpans)
+      {
+         placeRowSpans(rows, enabledRows);
+      }
+   }
+
+   private void placeRowSpans(List<GridVisitor.GeneralGridRow> rows, boolean[] enabledRows)
+   {
+      final int rowCount = rows.size();
+
+      int[] renderedRows = new int[rowCount];
+      int renderedCount = 0;
+      for (int row = 0; row < rowCount; ++ row)
+      {
+         if ((enabledRows == null) || enabledRows[row])
+         {
+            renderedRows[renderedCount] = row;
+            renderedCount++;
+         }
+      }
+
+      for (int rr = 0; rr < renderedCount; ++ rr)
+      {
+         final int row = renderedRows[rr];
+         final List<GridVisitor.GridCell> cells = rows.get(row).cells;
+
+         int column = 0;
+         while (column < columnCount)
+         {
+            if (isCovered(row, column))
+            {
+               column++;
+               continue;
+            }
+
+            final GridVisitor.GridCell gc = cells.get(column);
+
+            final int endColumn = Math.min(column + gc.colSpan, columnCount);
+            final int endRow = Math.min(rr + gc.rowSpan, renderedCount);
+            for (int below = rr + 1; below < endRow; ++ below)
+            {
+               final int start = renderedRows[below] * columnCount;
+               covered.set(start + column, start + endColumn);
+            }
+
+            column += gc.colSpan;
+         }
+      }
+   }
+
+   /*
+    * whether the position belongs to the cell to its left
+    */
+   boolean isContinued(int row, int column)
+   {
+      return continued.get(row * columnCount + column);
+   }
+
+   /*
+    * whether the position belongs to a cell from a row above
+    */
+   boolean isCovered(int row, int column)
+   {
+      return covered.get(row * columnCount + column);
+   }
+
+   /*
+    * the first column at or after column that is not covered by a cell from
+    * a row above, or the column count
+    */
+   int getCoveredEnd(int row, int column)
+   {
+      final int start = row * columnCount;
+      return Math.min(covered.nextClearBit(start + column) - start, columnCount);
+   }
+}
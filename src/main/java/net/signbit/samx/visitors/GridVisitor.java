@@ -22,7 +22,6 @@ import java.util.List;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.math.NumberUtils;
 
 import net.signbit.samx.parser.SamXParser;
 import net.signbit.samx.parser.SamXParserBaseVisitor;
@@ -97,9 +96,9 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
          return builder.toString();
       }
 
-      public boolean hasContent()
+      public boolean hasContent(DerivedData derivedData)
       {
-         return flow != null && (! flow.getText().isEmpty());
+         return flow != null && (! derivedData.getText(flow).isEmpty());
       }
 
       public Object renderContent(SamXParserVisitor<Object> visitor)
@@ -107,14 +106,13 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
          return visitor.visitFlow(flow);
       }
 
-      public String getAttributesPlain()
+      public String getAttributesPlain(DerivedData derivedData)
       {
-         AttributeVisitor av = new AttributeVisitor();
-         for (SamXParser.AttributeContext ac : attributes)
+         if (attributes.isEmpty())
          {
-            av.visit(ac);
+            return "";
          }
-         return av.toPlainString();
+         return derivedData.getAttributesPlain(attributes.get(0).getParent());
       }
 
       public boolean empty()
@@ -173,7 +171,7 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
       boolean[] isDouble;
       boolean[] isCurrency;
 
-      GeneralGridGroup(SamXParser.GeneralGridGroupContext gggc, SamXParserVisitor<StringBuilder> visitor)
+      GeneralGridGroup(SamXParser.GeneralGridGroupContext gggc, SamXParserVisitor<StringBuilder> visitor, DerivedData derivedData)
       {
          HashSet<Integer> columnLengths = new HashSet<>();
          for (SamXParser.GeneralGridRowContext rc : gggc.generalGridRow())
@@ -225,20 +223,27 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
          {
             if (visitor != null)
             {
+               String content = null;
+               int thisWidth = 0;
+
                for (int ii = 0; ii < ggr.cells.size(); ++ ii)
                {
                   final GridCell gc = ggr.cells.get(ii);
 
-                  final String attributes = gc.getAttributesPlain();
-                  final String content = gc.getContent(visitor);
-
-                  int rowSpanIndicator = 0;
-                  if (gc.rowSpan > 1)
+                  // a cell spanning columns is measured once, on its first column
+                  if ((ii == 0) || (gc != ggr.cells.get(ii - 1)))
                   {
-                     rowSpanIndicator = gc.rowSpan;
-                  }
+                     final String attributes = gc.getAttributesPlain(derivedData);
+                     content = gc.getContent(visitor);
 
-                  final int thisWidth = (int) Math.ceil((attributes.length() + content.length() + rowSpanIndicator) / (double) (gc.colSpan));
+                     int rowSpanIndicator = 0;
+                     if (gc.rowSpan > 1)
+                     {
+                        rowSpanIndicator = gc.rowSpan;
+                     }
+
+                     thisWidth = (int) Math.ceil((attributes.length() + content.length() + rowSpanIndicator) / (double) (gc.colSpan));
+                  }
 
                   if (columnWidths[ii] < thisWidth)
                   {
@@ -274,27 +279,19 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
             return;
          }
 
-         if (NumberUtils.isCreatable(content))
+         if (NumberClassifier.isInteger(content))
          {
-            try
-            {
-               NumberUtils.createInteger(content);
-               isCurrency[ii] = false;
-            }
-            catch (NumberFormatException nfei)
-            {
-               isInteger[ii] = false;
-
-               try
-               {
-                  NumberUtils.createDouble(content);
-                  isCurrency[ii] = false;
-               }
-               catch (NumberFormatException nfed)
-               {
-                  isDouble[ii] = false;
-               }
-            }
+            isCurrency[ii] = false;
+         }
+         else if (NumberClassifier.isDouble(content))
+         {
+            isInteger[ii] = false;
+            isCurrency[ii] = false;
+         }
+         else if (NumberClassifier.isCreatable(content))
+         {
+            isInteger[ii] = false;
+            isDouble[ii] = false;
          }
          else
          {
@@ -308,11 +305,7 @@ public class GridVisitor extends SamXParserBaseVisitor<StringBuilder>
             {
                final String asCurrency = StringUtils.remove(StringUtils.remove(content.substring(1), ','), '.');
 
-               try
-               {
-                  NumberUtils.createInteger(asCurrency);
-               }
-               catch (NumberFormatException nfec)
+               if (! NumberClassifier.isDecodableInteger(asCurrency))
                {
                   isCurrency[ii] = false;
                }
@@ -7,6 +7,7 @@ import java.util.HashMap;
 import java.util.List;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.ParseTree;
@@ -36,12 +37,25 @@ public class HtmlPrinterVisitor extends RendererVisitor
 
       ArrayList<String> renderedBlocks = new ArrayList<>();
 
-      for (SamXParser.BlockContext bc : ctx.block())
+      if (parallelRendering)
       {
-         Object rendered = visit(bc);
-         if (rendered != null)
+         for (RenderedBlock rb : renderBlocks(ctx.block()))
          {
-            renderedBlocks.add(rendered.toString());
+            if (rb.result != null)
+            {
+               renderedBlocks.add(rb.result.toString());
+            }
+         }
+      }
+      else
+      {
+         for (SamXParser.BlockContext bc : ctx.block())
+         {
+            Object rendered = visitTopLevelBlock(bc);
+            if (rendered != null)
+            {
+               renderedBlocks.add(rendered.toString());
+            }
          }
       }
 
@@ -52,6 +66,24 @@ public class HtmlPrinterVisitor extends RendererVisitor
       return null;
    }
 
+   @Override
+   RendererVisitor makeBlockVisitor(Writer aWriter, ParserRuleContext ctx)
+   {
+      HtmlPrinterVisitor visitor = new HtmlPrinterVisitor(aWriter, includedDocuments, includedExceptions, referencePaths, tokenStream);
+      configureChildVisitor(visitor, ctx);
+      visitor.derivedData = derivedData;
+      return visitor;
+   }
+
+   @Override
+   RendererVisitor makeFragmentVisitor(Writer aWriter, FragmentIndex.Definition definition, ParserRuleContext ctx)
+   {
+      HtmlPrinterVisitor visitor = new HtmlPrinterVisitor(aWriter, includedDocuments, includedExceptions, definition.referencePaths, definition.tokens);
+      configureChildVisitor(visitor, ctx);
+      visitor.derivedData = definition.derivedData;
+      return visitor;
+   }
+
    @Override
    public String visitParagraph(SamXParser.ParagraphContext ctx)
    {
@@ -108,7 +140,7 @@ public class HtmlPrinterVisitor extends RendererVisitor
          }
          else
          {
-            append(' ');
+            builder.append(' ');
          }
 
          builder.append(visit(pt));
@@ -122,10 +154,16 @@ public class HtmlPrinterVisitor extends RendererVisitor
    {
       StringBuilder builder = new StringBuilder();
 
+      final List<ParseTree> children = ctx.children;
+      final SourceText sourceText = derivedData.getSourceText();
+
       boolean firstToken = true;
 
-      for (ParseTree pt : ctx.children)
+      int ii = 0;
+      while (ii < children.size())
       {
+         final ParseTree pt = children.get(ii);
+
          if (! firstToken)
          {
             final Interval pos = pt.getSourceInterval();
@@ -139,12 +177,23 @@ public class HtmlPrinterVisitor extends RendererVisitor
             }
          }
 
+         // literals need no escaping; copy runs of them from the input
+         final int runEnd = sourceText.findRun(children, ii, child -> child instanceof SamXParser.LiteralContext);
+         if (runEnd > ii)
+         {
+            builder.append(sourceText.getText(), sourceText.getStart(pt), sourceText.getEnd(children.get(runEnd - 1)));
+            firstToken = false;
+            ii = runEnd;
+            continue;
+         }
+
          Object rendered = visit(pt);
          if (rendered != null)
          {
             builder.append(rendered.toString());
             firstToken = false;
          }
+         ii++;
       }
 
       return builder.toString();
@@ -156,6 +205,48 @@ public class HtmlPrinterVisitor extends RendererVisitor
       return ctx.getText();
    }
 
+   @Override
+   public String visitIncludeFile(SamXParser.IncludeFileContext ctx)
+   {
+      if (isDisabled(ctx))
+      {
+         return null;
+      }
+
+      final String reference = ctx.reference.getText();
+      final String absolutePath = referencePaths.get(reference);
+
+      final Parser.Result includedResult = includedDocuments.get(absolutePath);
+      if (includedResult == null)
+      {
+         return String.format("<!-- include %s is not found -->\n", reference);
+      }
+
+      final String key = getIncludeKey(absolutePath);
+
+      String rendered = getRenderCache().get(key);
+      if (rendered == null)
+      {
+         HtmlPrinterVisitor visitor = new HtmlPrinterVisitor(writer, includedDocuments, includedExceptions, includedResult.referencePaths, includedResult.tokens);
+         configureChildVisitor(visitor, ctx);
+
+         StringBuilder builder = new StringBuilder();
+         for (SamXParser.BlockContext bc : includedResult.document.block())
+         {
+            Object renderedBlock = visitor.visit(bc);
+            if (renderedBlock != null)
+            {
+               builder.append(renderedBlock.toString());
+            }
+         }
+
+         rendered = builder.toString();
+         getRenderCache().put(key, rendered);
+      }
+
+      return rendered;
+   }
+
    @Override
    public String visitField(SamXParser.FieldContext ctx)
    {
@@ -0,0 +1,320 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+/*
+ * Recognizes the numbers in table cells without parsing them through
+ * exceptions.
+ *
+ * The tables used to be classified with NumberUtils.isCreatable followed by
+ * NumberUtils.createInteger or createDouble, catching the exception of the
+ * values that did not fit; these methods accept exactly the same values,
+ * so the alignment of the columns does not change.
+ */
+public final class NumberClassifier
+{
+   public enum Kind
+   {
+      NONE,
+      INTEGER,
+      LONG,
+      DECIMAL
+   }
+
+   private NumberClassifier()
+   {
+   }
+
+   /*
+    * INTEGER for the values that fit an int, LONG for the integers that only
+    * fit a long, DECIMAL for the other numbers a double can hold
+    */
+   public static Kind classify(String value)
+   {
+      if (! isCreatable(value))
+      {
+         return Kind.NONE;
+      }
+
+      if (isDecodable(value, Integer.MIN_VALUE, Integer.MAX_VALUE))
+      {
+         return Kind.INTEGER;
+      }
+
+      if (isDecodable(value, Long.MIN_VALUE, Long.MAX_VALUE))
+      {
+         return Kind.LONG;
+      }
+
+      if (isParsableAsDouble(value))
+      {
+         return Kind.DECIMAL;
+      }
+
+      return Kind.NONE;
+   }
+
+   /*
+    * a number that Integer.decode accepts
+    */
+   public static boolean isInteger(String value)
+   {
+      return isCreatable(value) && isDecodable(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /*
+    * a number that Double.valueOf accepts
+    */
+   public static boolean isDouble(String value)
+   {
+      return isCreatable(value) && isParsableAsDouble(value);
+   }
+
+   /*
+    * what Integer.decode accepts, for text that does not have to look like
+    * a number otherwise
+    */
+   public static boolean isDecodableInteger(String value)
+   {
+      return isDecodable(value, Integer.MIN_VALUE, Integer.MAX_VALUE);
+   }
+
+   /*
+    * the values NumberUtils.isCreatable accepts: decimal, octal and 0x
+    * hexadecimal integers, decimals with an optional exponent, and the Java
+    * type suffixes
+    */
+   static boolean isCreatable(String value)
+   {
+      final int length = value.length();
+      if (length == 0)
+      {
+         return false;
+      }
+
+      final int start = ((value.charAt(0) == '-') || (value.charAt(0) == '+')) ? 1 : 0;
+
+      if ((length > start + 1) && (value.charAt(start) == '0') && (value.indexOf('.') < 0))
+      {
+         final char second = value.charAt(start + 1);
+         if ((second == 'x') || (second == 'X'))
+         {
+            if (length == start + 2)
+            {
+               return false;
+            }
+
+            for (int ii = start + 2; ii < length; ++ ii)
+            {
+               if (! isAsciiHexDigit(value.charAt(ii)))
+               {
+                  return false;
+               }
+            }
+            return true;
+         }
+         else if (isAsciiDigit(second))
+         {
+            for (int ii = start + 1; ii < length; ++ ii)
+            {
+               if ((value.charAt(ii) < '0') || (value.charAt(ii) > '7'))
+               {
+                  return false;
+               }
+            }
+            return true;
+         }
+      }
+
+      boolean hasExponent = false;
+      boolean hasDecimalPoint = false;
+      boolean allowSigns = false;
+      boolean foundDigit = false;
+
+      // the last character is checked separately, for the type suffixes
+      final int last = length - 1;
+      int ii = start;
+      while ((ii < last) || ((ii < last + 1) && allowSigns && (! foundDigit)))
+      {
+         final char ch = value.charAt(ii);
+         if (isAsciiDigit(ch))
+         {
+            foundDigit = true;
+            allowSigns = false;
+         }
+         else if (ch == '.')
+         {
+            if (hasDecimalPoint || hasExponent)
+            {
+               return false;
+            }
+            hasDecimalPoint = true;
+         }
+         else if ((ch == 'e') || (ch == 'E'))
+         {
+            if (hasExponent || (! foundDigit))
+            {
+               return false;
+            }
+            hasExponent = true;
+            allowSigns = true;
+         }
+         else if ((ch == '+') || (ch == '-'))
+         {
+            if (! allowSigns)
+            {
+               return false;
+            }
+            allowSigns = false;
+            foundDigit = false;
+         }
+         else
+         {
+            return false;
+         }
+         ii++;
+      }
+
+      if (ii < length)
+      {
+         final char ch = value.charAt(ii);
+         if (isAsciiDigit(ch))
+         {
+            return true;
+         }
+         if ((ch == 'e') || (ch == 'E'))
+         {
+            return false;
+         }
+         if (ch == '.')
+         {
+            return (! hasDecimalPoint) && (! hasExponent) && foundDigit;
+         }
+         if ((! allowSigns) && ((ch == 'd') || (ch == 'D') || (ch == 'f') || (ch == 'F')))
+         {
+            return foundDigit;
+         }
+         if ((ch == 'l') || (ch == 'L'))
+         {
+            return foundDigit && (! hasExponent) && (! hasDecimalPoint);
+         }
+         return false;
+      }
+
+      return (! allowSigns) && foundDigit;
+   }
+
+   private static boolean isAsciiDigit(char ch)
+   {
+      return (ch >= '0') && (ch <= '9');
+   }
+
+   private static boolean isAsciiHexDigit(char ch)
+   {
+      return isAsciiDigit(ch) || ((ch >= 'a') && (ch <= 'f')) || ((ch >= 'A') && (ch <= 'F'));
+   }
+
+   /*
+    * whether the value is in [minValue, maxValue] as read by Integer.decode
+    * or Long.decode: an optional sign, then 0x, 0X or # for hexadecimal, a
+    * leading 0 for octal, or decimal digits
+    */
+   private static boolean isDecodable(String value, long minValue, long maxValue)
+   {
+      final int length = value.length();
+      if (length == 0)
+      {
+         return false;
+      }
+
+      int index = 0;
+      boolean negative = false;
+
+      final char first = value.charAt(0);
+      if (first == '-')
+      {
+         negative = true;
+         index++;
+      }
+      else if (first == '+')
+      {
+         index++;
+      }
+
+      int radix = 10;
+      if (value.startsWith("0x", index) || value.startsWith("0X", index))
+      {
+         index += 2;
+         radix = 16;
+      }
+      else if (value.startsWith("#", index))
+      {
+         index++;
+         radix = 16;
+      }
+      else if (value.startsWith("0", index) && (length > index + 1))
+      {
+         index++;
+         radix = 8;
+      }
+
+      if (index == length)
+      {
+         return false;
+      }
+
+      // accumulated negatively, as the negative range is the larger one
+      final long limit = negative ? minValue : -maxValue;
+      final long multiplyLimit = limit / radix;
+
+      long result = 0;
+      for (; index < length; ++ index)
+      {
+         final int digit = Character.digit(value.charAt(index), radix);
+         if ((digit < 0) || (result < multiplyLimit))
+         {
+            return false;
+         }
+
+         result *= radix;
+         if (result < limit + digit)
+         {
+            return false;
+         }
+         result -= digit;
+      }
+
+      return true;
+   }
+
+   /*
+    * for the values isCreatable accepts: Double.valueOf takes them all but
+    * the hexadecimal integers and the long suffix
+    */
+   private static boolean isParsableAsDouble(String value)
+   {
+      final int start = ((value.charAt(0) == '-') || (value.charAt(0) == '+')) ? 1 : 0;
+
+      if (value.startsWith("0x", start) || value.startsWith("0X", start))
+      {
+         return false;
+      }
+
+      final char last = value.charAt(value.length() - 1);
+      return (last != 'l') && (last != 'L');
+   }
+}
@@ -30,10 +30,17 @@ import net.signbit.samx.parser.SamXParserBaseVisitor;
 public class PlainTextVisitor extends SamXParserBaseVisitor<StringBuilder>
 {
    private final BufferedTokenStream tokenStream;
+   private final SourceText sourceText;
 
    public PlainTextVisitor(BufferedTokenStream tokenStream)
    {
-      this.tokenStream = tokenStream;
+      this(new SourceText(tokenStream));
+   }
+
+   public PlainTextVisitor(SourceText sourceText)
+   {
+      this.tokenStream = sourceText.getTokenStream();
+      this.sourceText = sourceText;
    }
 
    @Override
@@ -41,17 +48,30 @@ public class PlainTextVisitor extends SamXParserBaseVisitor<StringBuilder>
    {
       StringBuilder builder = new StringBuilder();
 
-      boolean firstToken = true;
+      final List<ParseTree> children = ctx.children;
 
-      for (ParseTree tn : ctx.children)
+      int ii = 0;
+      while (ii < children.size())
       {
-         if (! firstToken)
+         final ParseTree tn = children.get(ii);
+
+         if (ii > 0)
          {
             addSpaceIfPresentInInput(builder, tn);
          }
 
-         builder.append(tn.getText());
-         firstToken = false;
+         // all children render as their own text
+         final int runEnd = sourceText.findRun(children, ii, pt -> true);
+         if (runEnd > ii)
+         {
+            builder.append(sourceText.getText(), sourceText.getStart(tn), sourceText.getEnd(children.get(runEnd - 1)));
+            ii = runEnd;
+         }
+         else
+         {
+            builder.append(tn.getText());
+            ii++;
+         }
       }
 
       return builder;
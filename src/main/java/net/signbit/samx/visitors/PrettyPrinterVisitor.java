@@ -38,7 +38,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
    private int indentLevel = 0;
    private final BufferedTokenStream tokenStream;
 
-   private final PlainTextVisitor plainTextVisitor;
+   private final DerivedData derivedData;
 
    private static final String indentString = "   ";
    private int wrapParagraphAtColumn = 72;
@@ -46,7 +46,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
    public PrettyPrinterVisitor(BufferedTokenStream tokenStream)
    {
       this.tokenStream = tokenStream;
-      plainTextVisitor = new PlainTextVisitor(tokenStream);
+      derivedData = new DerivedData(tokenStream);
    }
 
    private void addIndent(StringBuilder builder)
@@ -243,12 +243,101 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
       return builder;
    }
 
+   /*
+    * the groups of a record set, its rendered values and the widths of its
+    * columns, measured in one pass over the rows
+    */
+   private static final class RecordSetLayout
+   {
+      final ArrayList<RecordSetStream.Group> groups = new ArrayList<>();
+
+      // values of the data rows, indexed by row in the recordRow list
+      final String[][] values;
+      final String[] conditions;
+
+      final int[] columnWidths;
+      final boolean[] isInteger;
+      int conditionColumnWidth = 0;
+
+      RecordSetLayout(int rowCount, int columnCount)
+      {
+         values = new String[rowCount][];
+         conditions = new String[rowCount];
+         columnWidths = new int[columnCount];
+         isInteger = new boolean[columnCount];
+      }
+   }
+
+   private RecordSetLayout measureRecordSet(SamXParser.RecordSetContext ctx, RecordSetStream rs)
+   {
+      final int columnCount = rs.getColumnCount();
+
+      RecordSetLayout layout = new RecordSetLayout(ctx.recordRow().size(), columnCount);
+
+      for (int ii = 0; ii < columnCount; ++ ii)
+      {
+         layout.columnWidths[ii] = ctx.headerRow().NAME(ii).getText().length();
+         layout.isInteger[ii] = true;
+      }
+
+      for (RecordSetStream.Group rdg = rs.nextGroup(); rdg != null; rdg = rs.nextGroup())
+      {
+         layout.groups.add(rdg);
+
+         for (int row = rdg.firstRow; row < rdg.endRow; ++ row)
+         {
+            final SamXParser.RecordDataContext rd = rs.getRow(row);
+            final List<SamXParser.OptionalFlowContext> flows = rd.optionalFlow();
+
+            String[] values = new String[columnCount];
+            for (int ii = 0; ii < columnCount; ++ ii)
+            {
+               final SamXParser.FlowContext fc = flows.get(ii).flow();
+               if (fc != null)
+               {
+                  values[ii] = visitFlow(fc).toString();
+                  if (layout.columnWidths[ii] < values[ii].length())
+                  {
+                     layout.columnWidths[ii] = values[ii].length();
+                  }
+                  if (layout.isInteger[ii] && (! RecordSetStream.isIntegerValue(values[ii])))
+                  {
+                     layout.isInteger[ii] = false;
+                  }
+               }
+               else
+               {
+                  values[ii] = "";
+               }
+            }
+            layout.values[row] = values;
+
+            if (rd.condition() != null)
+            {
+               layout.conditions[row] = visitCondition(rd.condition()).toString();
+               if (layout.conditionColumnWidth < layout.conditions[row].length())
+               {
+                  layout.conditionColumnWidth = layout.conditions[row].length();
+               }
+            }
+            else
+            {
+               layout.conditions[row] = "";
+            }
+         }
+      }
+
+      return layout;
+   }
+
    @Override
    public StringBuilder visitRecordSet(SamXParser.RecordSetContext ctx)
    {
-      RecordSetVisitor visitor = new RecordSetVisitor(tokenStream);
-      RecordSetVisitor.RecordSet rs = (RecordSetVisitor.RecordSet) visitor.visitRecordSet(ctx);
-      rs.computePresentation(this);
+      RecordSetStream rs = new RecordSetStream(ctx);
+      RecordSetLayout layout = measureRecordSet(ctx, rs);
+
+      final List<TerminalNode> attributes = ctx.headerRow().NAME();
+      final boolean hasTrailingBar = (ctx.headerRow().trailingBar != null);
 
       StringBuilder builder = new StringBuilder();
 
@@ -264,39 +353,39 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
        * header
        */
       addIndent(builder);
-      final int attributeCount = rs.header.attributes.size();
+      final int attributeCount = attributes.size();
 
-      if (rs.conditionColumnWidth != 0)
+      if (layout.conditionColumnWidth != 0)
       {
-         builder.append(String.format("%1$-" + rs.conditionColumnWidth + "s", ""));
+         builder.append(String.format("%1$-" + layout.conditionColumnWidth + "s", ""));
       }
       for (int ii = 0; ii < attributeCount; ++ ii)
       {
          builder.append(" | ");
-         if (rs.isInteger[ii])
+         if (layout.isInteger[ii])
          {
-            builder.append(String.format("%1$" + rs.columnWidths[ii] + "s", rs.header.attributes.get(ii)));
+            builder.append(String.format("%1$" + layout.columnWidths[ii] + "s", attributes.get(ii).getText()));
          }
          else
          {
-            if (((ii + 1) == attributeCount) && (! rs.header.hasTrailingBar))
+            if (((ii + 1) == attributeCount) && (! hasTrailingBar))
             {
-               builder.append(rs.header.attributes.get(ii));
+               builder.append(attributes.get(ii).getText());
             }
             else
             {
-               builder.append(String.format("%1$-" + rs.columnWidths[ii] + "s", rs.header.attributes.get(ii)));
+               builder.append(String.format("%1$-" + layout.columnWidths[ii] + "s", attributes.get(ii).getText()));
             }
          }
       }
-      if (rs.header.hasTrailingBar)
+      if (hasTrailingBar)
       {
          builder.append(" |");
       }
       builder.append('\n');
 
       boolean skipHeaderSeparator = false;
-      if (! rs.hasHeaderSeparator)
+      if (! rs.hasHeaderSeparator())
       {
          skipHeaderSeparator = true;
       }
@@ -304,56 +393,45 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
       /*
        * body
        */
-      for (RecordSetVisitor.RecordDataGroup rdg : rs.groups)
+      for (RecordSetStream.Group rdg : layout.groups)
       {
          if (! skipHeaderSeparator)
          {
-            renderRecordGroupSeparator(rs.conditionColumnWidth, rs.columnWidths, attributeCount, builder);
+            renderRecordGroupSeparator(layout.conditionColumnWidth, layout.columnWidths, attributeCount, builder);
          }
          skipHeaderSeparator = false;
 
-         for (RecordSetVisitor.RecordData rd : rdg.rows)
+         for (int row = rdg.firstRow; row < rdg.endRow; ++ row)
          {
             addIndent(builder);
 
-            if (rs.conditionColumnWidth != 0)
+            if (layout.conditionColumnWidth != 0)
             {
-               String condition = "";
-               if (rd.condition != null)
-               {
-                  condition = visitCondition(rd.condition).toString();
-               }
-
-               builder.append(String.format("%1$-" + rs.conditionColumnWidth + "s", condition));
+               builder.append(String.format("%1$-" + layout.conditionColumnWidth + "s", layout.conditions[row]));
             }
             for (int ii = 0; ii < attributeCount; ++ ii)
             {
                builder.append(" | ");
-               SamXParser.FlowContext fc = rd.flows.get(ii);
-               String value = "";
-               if (fc != null)
-               {
-                  value = visitFlow(fc).toString();
-               }
+               final String value = layout.values[row][ii];
 
-               if (rs.isInteger[ii])
+               if (layout.isInteger[ii])
                {
-                  builder.append(String.format("%1$" + rs.columnWidths[ii] + "s", value));
+                  builder.append(String.format("%1$" + layout.columnWidths[ii] + "s", value));
                }
                else
                {
-                  if (((ii + 1) == attributeCount) && (! rs.header.hasTrailingBar))
+                  if (((ii + 1) == attributeCount) && (! hasTrailingBar))
                   {
                      builder.append(value);
                   }
                   else
                   {
-                     builder.append(String.format("%1$-" + rs.columnWidths[ii] + "s", value));
+                     builder.append(String.format("%1$-" + layout.columnWidths[ii] + "s", value));
                   }
                }
             }
 
-            if (rs.header.hasTrailingBar)
+            if (hasTrailingBar)
             {
                builder.append(" |");
             }
@@ -361,9 +439,9 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
          }
       }
 
-      if (rs.hasBottomBorder)
+      if (rs.hasBottomBorder())
       {
-         renderRecordGroupSeparator(rs.conditionColumnWidth, rs.columnWidths, attributeCount, builder);
+         renderRecordGroupSeparator(layout.conditionColumnWidth, layout.columnWidths, attributeCount, builder);
       }
 
       indentLevel--;
@@ -402,7 +480,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
    @Override
    public StringBuilder visitText(SamXParser.TextContext ctx)
    {
-      return plainTextVisitor.visitText(ctx);
+      return new StringBuilder(derivedData.getPlainText(ctx));
    }
 
    @Override
@@ -622,20 +700,9 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
       builder.append('\n');
 
       indentLevel++;
-      for (SamXParser.ExternalCodeContext ecc : ctx.externalCode())
-      {
-         addIndent(builder);
-
-         final int codeLineIndent = VisitorUtils.getTokenIndent(ecc, tokenStream);
-
-         for (int ii = codeBlockIndent; ii < codeLineIndent; ++ ii)
-         {
-            builder.append(' ');
-         }
-
-         builder.append(ecc.EXTCODE().getText());
-         builder.append('\n');
-      }
+      StringBuilder linePrefix = new StringBuilder();
+      addIndent(linePrefix);
+      builder.append(derivedData.getCodeBlockLines(ctx).render(codeBlockIndent, linePrefix.toString(), "\n"));
       indentLevel--;
 
       builder.append('\n');
@@ -938,7 +1005,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
    @Override
    public StringBuilder visitGeneralGrid(SamXParser.GeneralGridContext ctx)
    {
-      final GridVisitor.GeneralGridGroup body = new GridVisitor.GeneralGridGroup(ctx.body, this);
+      final GridVisitor.GeneralGridGroup body = new GridVisitor.GeneralGridGroup(ctx.body, this, derivedData);
 
       int conditionColumnWidth = body.conditionColumnWidth;
       int[] columnWidths = new int[body.columnCount];
@@ -950,7 +1017,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
       GridVisitor.GeneralGridGroup header = null;
       if (ctx.header != null)
       {
-         header = new GridVisitor.GeneralGridGroup(ctx.header, this);
+         header = new GridVisitor.GeneralGridGroup(ctx.header, this, derivedData);
          if (header.columnCount != body.columnCount)
          {
             throw new RuntimeException(String.format("Invalid table specification: multiple table column sizes between header (%d) and body (%d)", header.columnWidths.length, body.columnWidths.length));
@@ -973,7 +1040,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
       GridVisitor.GeneralGridGroup footer = null;
       if (ctx.footer != null)
       {
-         footer = new GridVisitor.GeneralGridGroup(ctx.footer, this);
+         footer = new GridVisitor.GeneralGridGroup(ctx.footer, this, derivedData);
          if (footer.columnCount != body.columnCount)
          {
             throw new RuntimeException(String.format("Invalid table specification: multiple table column sizes between footer (%d) and body (%d)", footer.columnWidths.length, body.columnWidths.length));
@@ -1055,8 +1122,12 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
 
    private void renderGeneralTableGroup(int conditionColumnWidth, int[] columnWidths, GridVisitor.GeneralGridGroup gridGroup, StringBuilder builder)
    {
-      for (GridVisitor.GeneralGridRow ggr : gridGroup.rows)
+      final GridLayout layout = new GridLayout(gridGroup.rows, gridGroup.columnCount, null, false);
+
+      for (int ii = 0; ii < gridGroup.rows.size(); ++ ii)
       {
+         final GridVisitor.GeneralGridRow ggr = gridGroup.rows.get(ii);
+
          addIndent(builder);
          if (conditionColumnWidth > 0)
          {
@@ -1066,16 +1137,15 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
 
          for (int jj = 0; jj < gridGroup.columnCount; ++ jj)
          {
-            final GridVisitor.GridCell gc = ggr.cells.get(jj);
-            if (gc.colSpan > 0)
+            if (! layout.isContinued(ii, jj))
             {
+               final GridVisitor.GridCell gc = ggr.cells.get(jj);
+
                builder.append(" |");
                int columnWidth = columnWidths[jj];
-               final int colSpan = gc.colSpan;
-               for (int kk = 1; kk < colSpan; ++ kk)
+               for (int kk = 1; kk < gc.colSpan; ++ kk)
                {
                   columnWidth += columnWidths[jj + kk] + 2;
-                  ggr.cells.get(jj + kk).colSpan = 0;
                   builder.append('|');
                }
                if (gc.rowSpan > 1)
@@ -1088,7 +1158,7 @@ public class PrettyPrinterVisitor extends SamXParserBaseVisitor<StringBuilder>
                      columnWidth--;
                   }
                }
-               final String attributes = gc.getAttributesPlain();
+               final String attributes = gc.getAttributesPlain(derivedData);
                builder.append(attributes);
                builder.append(' ');
                columnWidth -= attributes.length();
@@ -0,0 +1,370 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import net.signbit.samx.parser.SamXParser;
+import net.signbit.samx.parser.SamXParserBaseVisitor;
+
+/*
+ * A record set lowered into columns, for the code that reads the values of
+ * a table rather than rendering it.
+ *
+ * The type of each column is inferred from its values with NumberClassifier:
+ * INTEGER if they all fit an int, LONG if they all fit a long, DECIMAL if
+ * they are all numbers, STRING otherwise, and EMPTY if the column has no
+ * values. Numeric columns keep their values in a primitive array. Every
+ * column also keeps the text of its cells, as ids in a dictionary shared by
+ * the columns of the record set, so the repeated values are stored once.
+ *
+ * Rows are numbered in document order across the groups, and the cells
+ * rendered as empty text have no value.
+ */
+public class RecordSetColumns
+{
+   public enum Type
+   {
+      EMPTY,
+      INTEGER,
+      LONG,
+      DECIMAL,
+      STRING
+   }
+
+   public final class Column
+   {
+      private final String name;
+      private final Type type;
+
+      private final BitSet present;
+      private final int[] textIds;
+
+      private final int[] ints;
+      private final long[] longs;
+      private final double[] decimals;
+
+      private Column(String name, String[] texts, NumberClassifier.Kind[] kinds)
+      {
+         this.name = name;
+         type = inferType(kinds);
+
+         final int rowCount = texts.length;
+         present = new BitSet(rowCount);
+         textIds = new int[rowCount];
+
+         ints = (type == Type.INTEGER) ? new int[rowCount] : null;
+         longs = (type == Type.LONG) ? new long[rowCount] : null;
+         decimals = (type == Type.DECIMAL) ? new double[rowCount] : null;
+
+         for (int row = 0; row < rowCount; ++ row)
+         {
+            if (texts[row] == null)
+            {
+               textIds[row] = -1;
+               continue;
+            }
+
+            present.set(row);
+            textIds[row] = internText(texts[row]);
+
+            // the kinds were checked, so the values decode without errors
+            switch (type)
+            {
+               case INTEGER:
+                  ints[row] = Integer.decode(texts[row]);
+                  break;
+
+               case LONG:
+                  longs[row] = Long.decode(texts[row]);
+                  break;
+
+               case DECIMAL:
+                  if (kinds[row] == NumberClassifier.Kind.DECIMAL)
+                  {
+                     decimals[row] = Double.parseDouble(texts[row]);
+                  }
+                  else
+                  {
+                     decimals[row] = Long.decode(texts[row]);
+                  }
+                  break;
+
+               default:
+                  break;
+            }
+         }
+      }
+
+      public String getName()
+      {
+         return name;
+      }
+
+      public Type getType()
+      {
+         return type;
+      }
+
+      public boolean isPresent(int row)
+      {
+         return present.get(row);
+      }
+
+      /*
+       * the text of the cell, or null if the cell has no value
+       */
+      public String getText(int row)
+      {
+         return present.get(row) ? dictionary.get(textIds[row]) : null;
+      }
+
+      /*
+       * the id of the text of the cell in the dictionary, or -1 if the cell has
+       * no value; equal texts have equal ids
+       */
+      public int getTextId(int row)
+      {
+         return textIds[row];
+      }
+
+      public int getInt(int row)
+      {
+         checkValue(row, type == Type.INTEGER, "an integer");
+         return ints[row];
+      }
+
+      public long getLong(int row)
+      {
+         checkValue(row, (type == Type.INTEGER) || (type == Type.LONG), "an integer");
+         return (type == Type.INTEGER) ? ints[row] : longs[row];
+      }
+
+      public double getDecimal(int row)
+      {
+         checkValue(row, (type == Type.INTEGER) || (type == Type.LONG) || (type == Type.DECIMAL), "a number");
+
+         switch (type)
+         {
+            case INTEGER:
+               return ints[row];
+
+            case LONG:
+               return longs[row];
+
+            default:
+               return decimals[row];
+         }
+      }
+
+      private void checkValue(int row, boolean isExpectedType, String expected)
+      {
+         if (! isExpectedType)
+         {
+            throw new RuntimeException(String.format("Record set column %s holds %s values, not %s", name, type, expected));
+         }
+
+         if (! present.get(row))
+         {
+            throw new RuntimeException(String.format("Record set column %s has no value in row %d", name, row + 1));
+         }
+      }
+   }
+
+   private final ArrayList<String> dictionary = new ArrayList<>();
+   private final HashMap<String, Integer> textIds = new HashMap<>();
+
+   private final Column[] columns;
+   private final int rowCount;
+
+   // group g holds the rows from groupStarts[g] up to groupStarts[g + 1]
+   private final int[] groupStarts;
+   private final ArrayList<RecordSetStream.Group> groups = new ArrayList<>();
+
+   /*
+    * textVisitor renders the cells into the text the values are read from
+    */
+   public RecordSetColumns(SamXParser.RecordSetContext ctx, SamXParserBaseVisitor<StringBuilder> textVisitor)
+   {
+      RecordSetStream rs = new RecordSetStream(ctx);
+
+      final int columnCount = rs.getColumnCount();
+
+      int rows = 0;
+      for (RecordSetStream.Group group = rs.nextGroup(); group != null; group = rs.nextGroup())
+      {
+         groups.add(group);
+         rows += group.getRowCount();
+      }
+      rowCount = rows;
+
+      groupStarts = new int[groups.size() + 1];
+
+      String[][] texts = new String[columnCount][rowCount];
+      NumberClassifier.Kind[][] kinds = new NumberClassifier.Kind[columnCount][rowCount];
+
+      int row = 0;
+      for (int gg = 0; gg < groups.size(); ++ gg)
+      {
+         final RecordSetStream.Group group = groups.get(gg);
+         groupStarts[gg] = row;
+
+         for (int index = group.firstRow; index < group.endRow; ++ index)
+         {
+            final SamXParser.RecordDataContext rdc = rs.getRow(index);
+
+            for (int ii = 0; ii < columnCount; ++ ii)
+            {
+               final SamXParser.FlowContext fc = rdc.optionalFlow(ii).flow();
+               if (fc != null)
+               {
+                  final String text = textVisitor.visitFlow(fc).toString();
+                  if (! text.isEmpty())
+                  {
+                     texts[ii][row] = text;
+                     kinds[ii][row] = NumberClassifier.classify(text);
+                  }
+               }
+            }
+
+            row++;
+         }
+      }
+      groupStarts[groups.size()] = row;
+
+      columns = new Column[columnCount];
+      for (int ii = 0; ii < columnCount; ++ ii)
+      {
+         columns[ii] = new Column(ctx.headerRow().NAME(ii).getText(), texts[ii], kinds[ii]);
+      }
+   }
+
+   private static Type inferType(NumberClassifier.Kind[] kinds)
+   {
+      Type type = Type.EMPTY;
+
+      for (NumberClassifier.Kind kind : kinds)
+      {
+         if (kind == null)
+         {
+            continue;
+         }
+
+         switch (kind)
+         {
+            case NONE:
+               return Type.STRING;
+
+            case DECIMAL:
+               type = Type.DECIMAL;
+               break;
+
+            case LONG:
+               if (type != Type.DECIMAL)
+               {
+                  type = Type.LONG;
+               }
+               break;
+
+            case INTEGER:
+               if (type == Type.EMPTY)
+               {
+                  type = Type.INTEGER;
+               }
+               break;
+         }
+      }
+
+      return type;
+   }
+
+   private int internText(String text)
+   {
+      Integer id = textIds.get(text);
+      if (id == null)
+      {
+         id = dictionary.size();
+         dictionary.add(text);
+         textIds.put(text, id);
+      }
+      return id;
+   }
+
+   public int getColumnCount()
+   {
+      return columns.length;
+   }
+
+   public Column getColumn(int index)
+   {
+      return columns[index];
+   }
+
+   /*
+    * the first column with that name, or null
+    */
+   public Column getColumn(String name)
+   {
+      for (Column column : columns)
+      {
+         if (column.name.equals(name))
+         {
+            return column;
+         }
+      }
+      return null;
+   }
+
+   public int getRowCount()
+   {
+      return rowCount;
+   }
+
+   public int getGroupCount()
+   {
+      return groupStarts.length - 1;
+   }
+
+   public int getGroupStart(int group)
+   {
+      return groupStarts[group];
+   }
+
+   public int getGroupEnd(int group)
+   {
+      return groupStarts[group + 1];
+   }
+
+   /*
+    * whether the column has at most one value in the group, shared by all its
+    * rows, rather than one value per row
+    */
+   public boolean hasSingleValue(int group, int column)
+   {
+      return groups.get(group).hasSingleValue(column);
+   }
+
+   /*
+    * the number of distinct texts in the record set
+    */
+   public int getDictionarySize()
+   {
+      return dictionary.size();
+   }
+}
@@ -0,0 +1,263 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.List;
+
+import org.antlr.v4.runtime.tree.ParseTree;
+
+import net.signbit.samx.parser.SamXParser;
+import net.signbit.samx.parser.SamXParserBaseVisitor;
+
+/*
+ * Walks the groups of a record set straight from the parse tree, for the
+ * renderers that write the rows as they go instead of building a
+ * model of the table first.
+ *
+ * A group only records where its rows are and which of its columns have a
+ * single value, so the cost of a group does not depend on its contents.
+ * The cells of a row are reached through its children, without the list
+ * the generated accessors build on every call.
+ */
+class RecordSetStream
+{
+   static final class Group
+   {
+      // range of the rows of the group in the recordRow list, all of them data rows
+      final int firstRow;
+      final int endRow;
+
+      final int[] nonNullValues;
+
+      Group(int firstRow, int endRow, int[] nonNullValues)
+      {
+         this.firstRow = firstRow;
+         this.endRow = endRow;
+         this.nonNullValues = nonNullValues;
+      }
+
+      int getRowCount()
+      {
+         return endRow - firstRow;
+      }
+
+      boolean hasSingleValue(int index)
+      {
+         return nonNullValues[index] != getRowCount();
+      }
+   }
+
+   private final SamXParser.RecordSetContext recordSet;
+   private final List<SamXParser.RecordRowContext> rows;
+   private final int columnCount;
+
+   private int position = 0;
+   private int groupStartLine;
+   private boolean groupFound = false;
+   private boolean finished = false;
+
+   private boolean hasHeaderSeparator = false;
+   private boolean hasBottomBorder = false;
+
+   RecordSetStream(SamXParser.RecordSetContext ctx)
+   {
+      recordSet = ctx;
+      rows = ctx.recordRow();
+      columnCount = ctx.headerRow().NAME().size();
+      groupStartLine = ctx.headerRow().stop.getLine();
+   }
+
+   int getColumnCount()
+   {
+      return columnCount;
+   }
+
+   SamXParser.RecordDataContext getRow(int index)
+   {
+      return rows.get(index).recordData();
+   }
+
+   /*
+    * stores the flow of each cell of the row in cells, null for the empty
+    * ones; cells holds one element per column
+    */
+   static void getCells(SamXParser.RecordDataContext rdc, SamXParser.FlowContext[] cells)
+   {
+      int ii = 0;
+      for (ParseTree child : rdc.children)
+      {
+         if ((child instanceof SamXParser.OptionalFlowContext) && (ii < cells.length))
+         {
+            cells[ii] = ((SamXParser.OptionalFlowContext) child).flow();
+            ii++;
+         }
+      }
+   }
+
+   /*
+    * the next group, or null after the last one
+    */
+   Group nextGroup()
+   {
+      if (finished)
+      {
+         return null;
+      }
+
+      int firstRow = -1;
+      int[] nonNullValues = new int[columnCount];
+
+      while (position < rows.size())
+      {
+         final SamXParser.RecordRowContext rrc = rows.get(position);
+         position++;
+
+         final SamXParser.RecordDataContext rdc = rrc.recordData();
+         if (rdc == null)
+         {
+            if (firstRow >= 0)
+            {
+               final Group group = closeGroup(firstRow, position - 1, nonNullValues, rrc.start.getLine());
+               groupStartLine = rrc.start.getLine();
+               return group;
+            }
+            else if (! groupFound)
+            {
+               hasHeaderSeparator = true;
+            }
+         }
+         else
+         {
+            if (firstRow < 0)
+            {
+               firstRow = position - 1;
+            }
+
+            int ii = 0;
+            for (ParseTree child : rdc.children)
+            {
+               // a trailing bar adds an empty cell past the last column
+               if ((child instanceof SamXParser.OptionalFlowContext) && (ii < columnCount))
+               {
+                  if (((SamXParser.OptionalFlowContext) child).flow() != null)
+                  {
+                     nonNullValues[ii]++;
+                  }
+                  ii++;
+               }
+            }
+         }
+      }
+
+      finished = true;
+
+      if (firstRow >= 0)
+      {
+         return closeGroup(firstRow, rows.size(), nonNullValues, recordSet.stop.getLine());
+      }
+
+      hasBottomBorder = true;
+      return null;
+   }
+
+   private Group closeGroup(int firstRow, int endRow, int[] nonNullValues, int endLine)
+   {
+      final int rowCount = endRow - firstRow;
+
+      for (int ii = 0; ii < nonNullValues.length; ++ ii)
+      {
+         if ((nonNullValues[ii] != 0) && (nonNullValues[ii] != 1) && (nonNullValues[ii] != rowCount))
+         {
+            throw new RuntimeException(String.format("Record set group starting at line %d and ending at line %d has an invalid number of distinct values %d", groupStartLine, endLine, nonNullValues[ii]));
+         }
+      }
+
+      groupFound = true;
+      return new Group(firstRow, endRow, nonNullValues);
+   }
+
+   /*
+    * known once the first group was returned
+    */
+   boolean hasHeaderSeparator()
+   {
+      return hasHeaderSeparator;
+   }
+
+   /*
+    * known once nextGroup returned null
+    */
+   boolean hasBottomBorder()
+   {
+      return hasBottomBorder;
+   }
+
+   /*
+    * columns whose every non-empty value is an integer; a column stops being
+    * rendered as soon as one of its values is not
+    */
+   static boolean[] findIntegerColumns(SamXParser.RecordSetContext ctx, SamXParserBaseVisitor<StringBuilder> visitor)
+   {
+      final int columnCount = ctx.headerRow().NAME().size();
+
+      boolean[] isInteger = new boolean[columnCount];
+      int integerColumns = columnCount;
+      for (int ii = 0; ii < columnCount; ++ ii)
+      {
+         isInteger[ii] = true;
+      }
+
+      for (SamXParser.RecordRowContext rrc : ctx.recordRow())
+      {
+         if (integerColumns == 0)
+         {
+            break;
+         }
+
+         final SamXParser.RecordDataContext rdc = rrc.recordData();
+         if (rdc == null)
+         {
+            continue;
+         }
+
+         int ii = 0;
+         for (ParseTree child : rdc.children)
+         {
+            if ((child instanceof SamXParser.OptionalFlowContext) && (ii < columnCount))
+            {
+               final SamXParser.FlowContext fc = ((SamXParser.OptionalFlowContext) child).flow();
+               if (isInteger[ii] && (fc != null) && (! isIntegerValue(visitor.visitFlow(fc).toString())))
+               {
+                  isInteger[ii] = false;
+                  integerColumns--;
+               }
+               ii++;
+            }
+         }
+      }
+
+      return isInteger;
+   }
+
+   /*
+    * empty values do not decide the alignment of a column
+    */
+   static boolean isIntegerValue(String content)
+   {
+      return content.isEmpty() || NumberClassifier.isInteger(content);
+   }
+}
@@ -0,0 +1,61 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Rendered output of included documents, shared by the visitor of the
+ * top-level document and the visitors created for the included documents.
+ */
+public class RenderCache
+{
+   private final ConcurrentHashMap<String, String> renderedDocuments = new ConcurrentHashMap<>();
+
+   private final AtomicInteger hitCount = new AtomicInteger();
+   private final AtomicInteger missCount = new AtomicInteger();
+
+   String get(String key)
+   {
+      final String rendered = renderedDocuments.get(key);
+      if (rendered != null)
+      {
+         hitCount.incrementAndGet();
+      }
+      else
+      {
+         missCount.incrementAndGet();
+      }
+      return rendered;
+   }
+
+   void put(String key, String rendered)
+   {
+      renderedDocuments.put(key, rendered);
+   }
+
+   public int getHitCount()
+   {
+      return hitCount.get();
+   }
+
+   public int getMissCount()
+   {
+      return missCount.get();
+   }
+}
@@ -17,23 +17,27 @@
 package net.signbit.samx.visitors;
 
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.*;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.TokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
 
+import net.signbit.samx.LargeStack;
 import net.signbit.samx.Parser;
+import net.signbit.samx.events.Events;
 import net.signbit.samx.parser.SamXParser;
 import net.signbit.samx.parser.SamXParserBaseVisitor;
 
 public class RendererVisitor extends SamXParserBaseVisitor<Object>
 {
    final BufferedTokenStream tokenStream;
-   final PlainTextVisitor plainTextVisitor;
+   DerivedData derivedData;
 
-   final Writer writer;
+   Writer writer;
    final HashMap<String, Parser.Result> includedDocuments;
    final HashMap<String, IOException> includedExceptions;
    final HashMap<String, String> referencePaths;
@@ -50,6 +54,7 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
 
    int indentLevel = 0;
 
+   boolean memoizeFragments = false;
 
    public RendererVisitor(Writer aWriter, HashMap<String, Parser.Result> docDict, HashMap<String, IOException> errDict, HashMap<String, String> referenceDict, BufferedTokenStream tokenStream)
    {
@@ -59,7 +64,7 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
       referencePaths = referenceDict;
       this.tokenStream = tokenStream;
 
-      plainTextVisitor = new PlainTextVisitor(tokenStream);
+      derivedData = new DerivedData(tokenStream);
    }
 
    public void setProperties(Properties inputProperties)
@@ -255,6 +260,27 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
       }
    }
 
+   /*
+    * copies the input text of the nodes first to last, which must be a run
+    * found by SourceText.findRun
+    */
+   void appendSource(ParseTree first, ParseTree last)
+   {
+      final SourceText sourceText = derivedData.getSourceText();
+      final int start = sourceText.getStart(first);
+      final int length = sourceText.getEnd(last) - start;
+
+      try
+      {
+         writer.write(sourceText.getText(), start, length);
+         charactersWritten += length;
+      }
+      catch (IOException ioe)
+      {
+         exception = ioe;
+      }
+   }
+
    void append(char aChar)
    {
       try
@@ -275,6 +301,7 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
          if (writeNewlines)
          {
             writer.append('\n');
+            charactersWritten++;
          }
       }
       catch (IOException ioe)
@@ -283,6 +310,19 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
       }
    }
 
+   public int getCharactersWritten()
+   {
+      return charactersWritten;
+   }
+
+   /*
+    * the last error raised while writing the output, if any
+    */
+   public Exception getException()
+   {
+      return exception;
+   }
+
    public void skipNewLines()
    {
       writeNewlines = false;
@@ -312,15 +352,285 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
       }
    }
 
+   /*
+    * include support
+    */
+   private RenderCache renderCache = new RenderCache();
+
+   public RenderCache getRenderCache()
+   {
+      return renderCache;
+   }
+
+   /*
+    * passes the conditions and the shared indices to the visitor of an included document or of a block rendered in parallel
+    */
+   void configureChildVisitor(RendererVisitor visitor, ParserRuleContext ctx)
+   {
+      visitor.properties = properties;
+      visitor.trueFlags.addAll(trueFlags);
+      visitor.falseFlags.addAll(falseFlags);
+      visitor.fragmentIndex = getFragmentIndex(ctx);
+      visitor.renderCache = renderCache;
+      visitor.blockProfile = blockProfile;
+   }
+
+   String getIncludeKey(String absolutePath)
+   {
+      StringBuilder builder = new StringBuilder();
+
+      builder.append(absolutePath);
+      builder.append('@');
+      builder.append(getRenderState());
+      builder.append('@');
+      builder.append(new TreeSet<>(trueFlags));
+      builder.append(new TreeSet<>(falseFlags));
+      builder.append(new TreeMap<>(properties));
+
+      return builder.toString();
+   }
+
+   /*
+    * block profiling support
+    */
+   private BlockProfile blockProfile = null;
+
+   public void setBlockProfile(BlockProfile profile)
+   {
+      blockProfile = profile;
+   }
+
+   @Override
+   public Object visit(ParseTree tree)
+   {
+      if ((blockProfile != null) && (tree instanceof SamXParser.BlockContext))
+      {
+         return visitProfiled((SamXParser.BlockContext) tree);
+      }
+
+      return super.visit(tree);
+   }
+
+   private Object visitProfiled(SamXParser.BlockContext bc)
+   {
+      final BlockProfile.Frame frame = blockProfile.begin(bc, charactersWritten);
+
+      Object result = null;
+      try
+      {
+         result = super.visit(bc);
+         return result;
+      }
+      finally
+      {
+         blockProfile.end(frame, charactersWritten, (result instanceof CharSequence) ? ((CharSequence) result).length() : 0);
+      }
+   }
+
+   /*
+    * parallel rendering support
+    */
+   boolean parallelRendering = false;
+
+   public void setParallelRendering(boolean enable)
+   {
+      parallelRendering = enable;
+   }
+
+   static class RenderedBlock
+   {
+      final Object result;
+      final String output;
+      final Exception exception;
+
+      RenderedBlock(Object result, String output, Exception exception)
+      {
+         this.result = result;
+         this.output = output;
+         this.exception = exception;
+      }
+   }
+
+   /*
+    * creates a visitor with the same state as this one, writing into aWriter, to render ctx;
+    * visitors that cannot render blocks independently return null
+    */
+   RendererVisitor makeBlockVisitor(Writer aWriter, ParserRuleContext ctx)
+   {
+      return null;
+   }
+
+   /*
+    * blocks that have to be rendered in document order by the main visitor
+    */
+   boolean isRenderBarrier(SamXParser.BlockContext bc)
+   {
+      return bc instanceof SamXParser.DefineFragmentContext;
+   }
+
+   /*
+    * visits a block directly under the document, recording a Flight Recorder
+    * event for it when enabled
+    */
+   protected Object visitTopLevelBlock(SamXParser.BlockContext bc)
+   {
+      final Object event = Events.beginRenderBlock();
+      if (event == null)
+      {
+         return visit(bc);
+      }
+
+      final int charactersBefore = charactersWritten;
+      final Object result = visit(bc);
+
+      long characters = charactersWritten - charactersBefore;
+      if (result instanceof CharSequence)
+      {
+         characters += ((CharSequence) result).length();
+      }
+      Events.commitRenderBlock(event, bc, characters);
+
+      return result;
+   }
+
+   private RenderedBlock renderBlock(SamXParser.BlockContext bc)
+   {
+      StringWriter blockWriter = new StringWriter();
+      RendererVisitor visitor = makeBlockVisitor(blockWriter, bc);
+      final Object result = visitor.visitTopLevelBlock(bc);
+      return new RenderedBlock(result, blockWriter.toString(), visitor.exception);
+   }
+
+   private void renderRun(List<SamXParser.BlockContext> run, List<RenderedBlock> renderedBlocks)
+   {
+      for (RenderedBlock rb : LargeStack.map(run, this::renderBlock))
+      {
+         if (rb.exception != null)
+         {
+            exception = rb.exception;
+         }
+         renderedBlocks.add(rb);
+      }
+      run.clear();
+   }
+
+   /*
+    * renders the blocks on the large stack workers, each into its own
+    * buffer, and returns them in document order; barriers are rendered by
+    * this visitor after all the blocks preceding them
+    */
+   List<RenderedBlock> renderBlocks(List<SamXParser.BlockContext> blocks)
+   {
+      ArrayList<RenderedBlock> renderedBlocks = new ArrayList<>(blocks.size());
+
+      if (blocks.isEmpty())
+      {
+         return renderedBlocks;
+      }
+
+      // build the shared index before the workers need it
+      getFragmentIndex(blocks.get(0));
+
+      ArrayList<SamXParser.BlockContext> run = new ArrayList<>();
+
+      for (SamXParser.BlockContext bc : blocks)
+      {
+         if (isRenderBarrier(bc))
+         {
+            renderRun(run, renderedBlocks);
+
+            final Writer savedWriter = writer;
+            StringWriter blockWriter = new StringWriter();
+            writer = blockWriter;
+            final Object result = visitTopLevelBlock(bc);
+            writer = savedWriter;
+
+            renderedBlocks.add(new RenderedBlock(result, blockWriter.toString(), null));
+         }
+         else
+         {
+            run.add(bc);
+         }
+      }
+
+      renderRun(run, renderedBlocks);
+
+      return renderedBlocks;
+   }
+
    /*
     * fragment support
     */
-   private final HashMap<String, SamXParser.DefineFragmentContext> fragments = new HashMap<>();
+   private FragmentIndex fragmentIndex = null;
+
+   public void setFragmentIndex(FragmentIndex index)
+   {
+      fragmentIndex = index;
+   }
+
+   FragmentIndex getFragmentIndex(ParserRuleContext ctx)
+   {
+      if (fragmentIndex == null)
+      {
+         ParserRuleContext root = ctx;
+         while (root.getParent() != null)
+         {
+            root = root.getParent();
+         }
+
+         if (root instanceof SamXParser.DocumentContext)
+         {
+            fragmentIndex = new FragmentIndex(this, (SamXParser.DocumentContext) root);
+         }
+      }
+
+      return fragmentIndex;
+   }
+
+   /*
+    * returns the first definition that is not disabled by its own condition
+    */
+   FragmentIndex.Definition findFragment(SamXParser.InsertFragmentContext ctx)
+   {
+      final String name = ctx.name.getText();
+
+      final FragmentIndex index = getFragmentIndex(ctx);
+      if (index != null)
+      {
+         for (FragmentIndex.Definition definition : index.getDefinitions(name))
+         {
+            if (! isDisabled(definition.context))
+            {
+               return definition;
+            }
+         }
+      }
+
+      throw new RuntimeException(String.format("line %d: fragment %s is not defined", ctx.start.getLine(), name));
+   }
+
+   /*
+    * the renderer state that affects the output of a block; fragments are
+    * rendered once for each distinct state
+    */
+   String getRenderState()
+   {
+      return Integer.toString(indentLevel);
+   }
 
    @Override
    public Object visitDefineFragment(SamXParser.DefineFragmentContext ctx)
    {
-      fragments.put(ctx.name.getText(), ctx);
+      return null;
+   }
+
+   /*
+    * creates a visitor with the same state as this one, writing into aWriter,
+    * to render the blocks of a fragment defined in another document than the
+    * one of this visitor; visitors that cannot do that return null
+    */
+   RendererVisitor makeFragmentVisitor(Writer aWriter, FragmentIndex.Definition definition, ParserRuleContext ctx)
+   {
       return null;
    }
 
@@ -332,16 +642,94 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
          return null;
       }
 
-      SamXParser.DefineFragmentContext defineCtx = fragments.get(ctx.name.getText());
+      final FragmentIndex.Definition definition = findFragment(ctx);
+
+      if (! memoizeFragments)
+      {
+         if (definition.isDefinedIn(tokenStream))
+         {
+            for (SamXParser.BlockContext bc : definition.context.block())
+            {
+               visit(bc);
+            }
+         }
+         else
+         {
+            final String rendered = renderFragment(definition, ctx);
+            if (! rendered.isEmpty())
+            {
+               append(rendered);
+            }
+         }
+
+         return null;
+      }
+
+      /*
+       * conditions only depend on the properties and flags, which are fixed
+       * for the whole rendering, so the fragment output only changes with the
+       * defining document and the renderer state
+       */
+      final String key = ctx.name.getText() + '@' + definition.documentKey + '@' + getRenderState();
 
-      for (SamXParser.BlockContext bc : defineCtx.block())
+      String rendered = fragmentIndex.getRendered(key);
+      if (rendered == null)
       {
-         visit(bc);
+         rendered = renderFragment(definition, ctx);
+         fragmentIndex.putRendered(key, rendered);
       }
 
+      append(rendered);
+
       return null;
    }
 
+   /*
+    * renders the blocks of a fragment into a string; the token offsets and
+    * the derived data belong to the defining document, so a fragment from
+    * another document is rendered by a visitor made for that document
+    */
+   private String renderFragment(FragmentIndex.Definition definition, SamXParser.InsertFragmentContext ctx)
+   {
+      StringWriter fragmentWriter = new StringWriter();
+
+      if (! definition.isDefinedIn(tokenStream))
+      {
+         RendererVisitor visitor = makeFragmentVisitor(fragmentWriter, definition, ctx);
+         if (visitor == null)
+         {
+            throw new RuntimeException(String.format("line %d: fragment %s is defined in %s, which this output cannot insert from", ctx.start.getLine(), ctx.name.getText(), definition.documentKey));
+         }
+
+         for (SamXParser.BlockContext bc : definition.context.block())
+         {
+            visitor.visit(bc);
+         }
+
+         if (visitor.exception != null)
+         {
+            exception = visitor.exception;
+         }
+      }
+      else
+      {
+         final Writer savedWriter = writer;
+         final int savedCharactersWritten = charactersWritten;
+
+         writer = fragmentWriter;
+
+         for (SamXParser.BlockContext bc : definition.context.block())
+         {
+            visit(bc);
+         }
+
+         writer = savedWriter;
+         charactersWritten = savedCharactersWritten;
+      }
+
+      return fragmentWriter.toString();
+   }
+
    public String getPlainText(SamXParser.FlowContext fc)
    {
       if (fc == null)
@@ -350,18 +738,21 @@ public class RendererVisitor extends SamXParserBaseVisitor<Object>
       }
       else
       {
-         return plainTextVisitor.visitFlow(fc).toString();
+         return derivedData.getPlainText(fc);
       }
    }
 
-   public static AttributeVisitor getAttributes(ParserRuleContext prc)
+   /*
+    * the returned visitor is shared; do not modify it
+    */
+   public AttributeVisitor getAttributes(ParserRuleContext prc)
    {
-      AttributeVisitor attributeVisitor = new AttributeVisitor();
-      for (SamXParser.AttributeContext ac : prc.getRuleContexts(SamXParser.AttributeContext.class))
-      {
-         attributeVisitor.visit(ac);
-      }
-      return attributeVisitor;
+      return derivedData.getAttributes(prc);
+   }
+
+   public DerivedData getDerivedData()
+   {
+      return derivedData;
    }
 
    public BufferedTokenStream getTokenStream()
@@ -0,0 +1,196 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import net.signbit.samx.parser.SamXLexer;
+
+/*
+ * The input text of a document, for copying runs of tokens to the output
+ * directly instead of going through one String per token.
+ *
+ * A run is a sequence of sibling nodes, each matching a single token, that
+ * are separated in the input either by nothing or by exactly one space; the
+ * renderers collapse all the white space between tokens into one space, so
+ * such a run renders the same as its source text.
+ */
+public class SourceText
+{
+   private final BufferedTokenStream tokenStream;
+
+   private volatile boolean loaded = false;
+   private CharStream charStream = null;
+   private String text = null;
+
+   public SourceText(BufferedTokenStream tokenStream)
+   {
+      this.tokenStream = tokenStream;
+   }
+
+   public BufferedTokenStream getTokenStream()
+   {
+      return tokenStream;
+   }
+
+   private synchronized void load()
+   {
+      if (loaded)
+      {
+         return;
+      }
+
+      if (tokenStream != null)
+      {
+         final CharStream input = tokenStream.getTokenSource().getInputStream();
+         if (input != null)
+         {
+            final String inputText = input.getText(Interval.of(0, input.size() - 1));
+
+            // token offsets count code points; they index into the string only if there are no surrogate pairs
+            if (inputText.length() == input.size())
+            {
+               charStream = input;
+               text = inputText;
+            }
+         }
+      }
+
+      loaded = true;
+   }
+
+   public String getText()
+   {
+      if (! loaded)
+      {
+         load();
+      }
+      return text;
+   }
+
+   /*
+    * true if the offsets of the token index into the text
+    */
+   public boolean contains(Token token)
+   {
+      return (getText() != null) && (token.getInputStream() == charStream);
+   }
+
+   private static Token getSingleToken(ParseTree pt)
+   {
+      if (pt instanceof TerminalNode)
+      {
+         return ((TerminalNode) pt).getSymbol();
+      }
+
+      if (pt instanceof ParserRuleContext)
+      {
+         final ParserRuleContext prc = (ParserRuleContext) pt;
+         if ((prc.exception == null) && (prc.getStart() != null) && (prc.getStart() == prc.getStop()))
+         {
+            return prc.getStart();
+         }
+      }
+
+      return null;
+   }
+
+   private boolean isSeparatedBySingleSpace(Token previous, Token current)
+   {
+      final int gapStart = previous.getStopIndex() + 1;
+
+      if (current.getTokenIndex() == previous.getTokenIndex() + 1)
+      {
+         return current.getStartIndex() == gapStart;
+      }
+
+      if (current.getTokenIndex() == previous.getTokenIndex() + 2)
+      {
+         final Token between = tokenStream.get(previous.getTokenIndex() + 1);
+         return (between.getChannel() == SamXLexer.WHITESPACE) &&
+                (current.getStartIndex() == gapStart + 1) &&
+                (text.charAt(gapStart) == ' ');
+      }
+
+      return false;
+   }
+
+   /*
+    * returns the index past the run of children starting at first that can
+    * be copied from the input; returns first if there is no such run
+    */
+   public int findRun(List<ParseTree> children, int first, Predicate<ParseTree> isVerbatim)
+   {
+      if (getText() == null)
+      {
+         return first;
+      }
+
+      Token previous = null;
+
+      int ii = first;
+      while (ii < children.size())
+      {
+         final ParseTree pt = children.get(ii);
+         if (! isVerbatim.test(pt))
+         {
+            break;
+         }
+
+         final Token token = getSingleToken(pt);
+         if ((token == null) || (! contains(token)) || (token.getTokenIndex() < 0))
+         {
+            break;
+         }
+
+         if ((previous != null) && (! isSeparatedBySingleSpace(previous, token)))
+         {
+            break;
+         }
+
+         previous = token;
+         ii++;
+      }
+
+      return ii;
+   }
+
+   /*
+    * offset in the text of the first character of a node in a run
+    */
+   public int getStart(ParseTree pt)
+   {
+      return getSingleToken(pt).getStartIndex();
+   }
+
+   /*
+    * offset in the text past the last character of a node in a run
+    */
+   public int getEnd(ParseTree pt)
+   {
+      return getSingleToken(pt).getStopIndex() + 1;
+   }
+}
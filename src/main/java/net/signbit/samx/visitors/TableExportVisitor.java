@@ -0,0 +1,553 @@
+/*
+   Copyright 2020 Florin Iucha
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+      http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package net.signbit.samx.visitors;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.antlr.v4.runtime.BufferedTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.parser.SamXParser;
+
+/*
+ * Exports the record sets of a document and of the documents it includes,
+ * one file per record set, named after its id or, without one, after its
+ * type and position.
+ *
+ * The document is walked first, applying the conditions, to collect the
+ * record sets; they are then written in parallel on the common fork-join
+ * pool, each straight from the parse tree to its buffered file, so no
+ * table is held in memory.
+ *
+ * The value of a column that has a single value in a group is repeated on
+ * every row of the group.
+ */
+public class TableExportVisitor extends RendererVisitor
+{
+   public enum Format
+   {
+      CSV("csv"),
+      TSV("tsv"),
+      JSONL("jsonl");
+
+      private final String extension;
+
+      Format(String extension)
+      {
+         this.extension = extension;
+      }
+
+      public String getExtension()
+      {
+         return extension;
+      }
+   }
+
+   public static final class Table
+   {
+      private final SamXParser.RecordSetContext recordSet;
+      private final TableExportVisitor owner;
+      private final File file;
+
+      private long rowCount = 0;
+      private Exception exception = null;
+
+      private Table(SamXParser.RecordSetContext recordSet, TableExportVisitor owner, File file)
+      {
+         this.recordSet = recordSet;
+         this.owner = owner;
+         this.file = file;
+      }
+
+      public File getFile()
+      {
+         return file;
+      }
+
+      public long getRowCount()
+      {
+         return rowCount;
+      }
+
+      /*
+       * the error raised while writing the table, if any
+       */
+      public Exception getException()
+      {
+         return exception;
+      }
+   }
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final File outputDir;
+   private final Format format;
+
+   // shared with the visitors of the included documents
+   private ArrayList<Table> tables = new ArrayList<>();
+   private HashMap<String, Integer> fileNames = new HashMap<>();
+
+   // not DerivedData.getPlainText, which keeps the text of every cell
+   private final PlainTextVisitor plainTextVisitor;
+
+   public TableExportVisitor(HashMap<String, Parser.Result> docDict, HashMap<String, IOException> errDict, HashMap<String, String> referenceDict, BufferedTokenStream tokenStream, File outputDir, Format format)
+   {
+      super(null, docDict, errDict, referenceDict, tokenStream);
+
+      this.outputDir = outputDir;
+      this.format = format;
+
+      plainTextVisitor = new PlainTextVisitor(derivedData.getSourceText());
+   }
+
+   public List<Table> getTables()
+   {
+      return tables;
+   }
+
+   /*
+    * writes all the tables found by visiting the document; returns them in
+    * document order
+    */
+   public List<Table> export()
+   {
+      return tables.parallelStream().map(TableExportVisitor::writeTable).collect(Collectors.toList());
+   }
+
+   private static Table writeTable(Table table)
+   {
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(table.file), StandardCharsets.UTF_8), BUFFER_SIZE))
+      {
+         table.rowCount = table.owner.writeRecordSet(table.recordSet, writer);
+      }
+      catch (IOException | RuntimeException e)
+      {
+         table.exception = e;
+      }
+
+      return table;
+   }
+
+   private long writeRecordSet(SamXParser.RecordSetContext ctx, Writer writer) throws IOException
+   {
+      final RecordSetStream rs = new RecordSetStream(ctx);
+      final int columnCount = rs.getColumnCount();
+
+      String[] names = new String[columnCount];
+      for (int ii = 0; ii < columnCount; ++ ii)
+      {
+         names[ii] = ctx.headerRow().NAME(ii).getText();
+      }
+
+      if (format != Format.JSONL)
+      {
+         writeRecord(writer, names, names);
+      }
+
+      final SamXParser.FlowContext[] cells = new SamXParser.FlowContext[columnCount];
+      final String[] groupValues = new String[columnCount];
+      final String[] values = new String[columnCount];
+
+      long rowCount = 0;
+      for (RecordSetStream.Group group = rs.nextGroup(); group != null; group = rs.nextGroup())
+      {
+         for (int ii = 0; ii < columnCount; ++ ii)
+         {
+            groupValues[ii] = null;
+         }
+
+         for (int index = group.firstRow; index < group.endRow; ++ index)
+         {
+            RecordSetStream.getCells(rs.getRow(index), cells);
+            for (int ii = 0; ii < columnCount; ++ ii)
+            {
+               if (group.hasSingleValue(ii) && (cells[ii] != null) && (groupValues[ii] == null))
+               {
+                  groupValues[ii] = getCellText(cells[ii]);
+               }
+            }
+         }
+
+         for (int index = group.firstRow; index < group.endRow; ++ index)
+         {
+            final SamXParser.RecordDataContext rdc = rs.getRow(index);
+            if (isDisabled(rdc.condition()))
+            {
+               continue;
+            }
+
+            RecordSetStream.getCells(rdc, cells);
+            for (int ii = 0; ii < columnCount; ++ ii)
+            {
+               values[ii] = group.hasSingleValue(ii) ? groupValues[ii] : getCellText(cells[ii]);
+            }
+
+            writeRecord(writer, names, values);
+            rowCount++;
+         }
+      }
+
+      return rowCount;
+   }
+
+   /*
+    * null for the cells without a value
+    */
+   private String getCellText(SamXParser.FlowContext fc)
+   {
+      if (fc == null)
+      {
+         return null;
+      }
+
+      final String text = plainTextVisitor.visitFlow(fc).toString();
+      return text.isEmpty() ? null : text;
+   }
+
+   private void writeRecord(Writer writer, String[] names, String[] values) throws IOException
+   {
+      switch (format)
+      {
+         case CSV:
+            for (int ii = 0; ii < values.length; ++ ii)
+            {
+               if (ii > 0)
+               {
+                  writer.write(',');
+               }
+               writeCsvField(writer, values[ii]);
+            }
+            break;
+
+         case TSV:
+            for (int ii = 0; ii < values.length; ++ ii)
+            {
+               if (ii > 0)
+               {
+                  writer.write('\t');
+               }
+               writeTsvField(writer, values[ii]);
+            }
+            break;
+
+         case JSONL:
+            writer.write('{');
+            for (int ii = 0; ii < values.length; ++ ii)
+            {
+               if (ii > 0)
+               {
+                  writer.write(',');
+               }
+               writeJsonString(writer, names[ii]);
+               writer.write(':');
+               if (values[ii] == null)
+               {
+                  writer.write("null");
+               }
+               else
+               {
+                  writeJsonString(writer, values[ii]);
+               }
+            }
+            writer.write('}');
+            break;
+      }
+
+      writer.write('\n');
+   }
+
+   /*
+    * RFC 4180: the fields holding separators, quotes or line breaks are
+    * quoted, with the quotes doubled
+    */
+   private static void writeCsvField(Writer writer, String value) throws IOException
+   {
+      if (value == null)
+      {
+         return;
+      }
+
+      boolean needsQuotes = false;
+      for (int ii = 0; ii < value.length(); ++ ii)
+      {
+         final char ch = value.charAt(ii);
+         if ((ch == ',') || (ch == '"') || (ch == '\n') || (ch == '\r'))
+         {
+            needsQuotes = true;
+            break;
+         }
+      }
+
+      if (! needsQuotes)
+      {
+         writer.write(value);
+         return;
+      }
+
+      writer.write('"');
+      for (int ii = 0; ii < value.length(); ++ ii)
+      {
+         final char ch = value.charAt(ii);
+         if (ch == '"')
+         {
+            writer.write('"');
+         }
+         writer.write(ch);
+      }
+      writer.write('"');
+   }
+
+   /*
+    * tabs, line breaks and backslashes are escaped with a backslash, as
+    * fields cannot hold them otherwise
+    */
+   private static void writeTsvField(Writer writer, String value) throws IOException
+   {
+      if (value == null)
+      {
+         return;
+      }
+
+      for (int ii = 0; ii < value.length(); ++ ii)
+      {
+         final char ch = value.charAt(ii);
+         switch (ch)
+         {
+            case '\t':
+               writer.write("\\t");
+               break;
+
+            case '\n':
+               writer.write("\\n");
+               break;
+
+            case '\r':
+               writer.write("\\r");
+               break;
+
+            case '\\':
+               writer.write("\\\\");
+               break;
+
+            default:
+               writer.write(ch);
+               break;
+         }
+      }
+   }
+
+   private static void writeJsonString(Writer writer, String value) throws IOException
+   {
+      writer.write('"');
+      for (int ii = 0; ii < value.length(); ++ ii)
+      {
+         final char ch = value.charAt(ii);
+         switch (ch)
+         {
+            case '"':
+               writer.write("\\\"");
+               break;
+
+            case '\\':
+               writer.write("\\\\");
+               break;
+
+            case '\n':
+               writer.write("\\n");
+               break;
+
+            case '\r':
+               writer.write("\\r");
+               break;
+
+            case '\t':
+               writer.write("\\t");
+               break;
+
+            default:
+               if (ch < 0x20)
+               {
+                  writer.write(String.format("\\u%04x", (int) ch));
+               }
+               else
+               {
+                  writer.write(ch);
+               }
+               break;
+         }
+      }
+      writer.write('"');
+   }
+
+   /*
+    * the id of the record set, or its type numbered in document order; a
+    * repeated name is numbered as well
+    */
+   private File makeTableFile(SamXParser.RecordSetContext ctx)
+   {
+      final String id = getAttributes(ctx.blockMetadata().metadata()).getId();
+      final String baseName = (id != null) ? id : ctx.NAME().getText();
+
+      final int count = fileNames.merge(baseName, 1, Integer::sum);
+
+      String name = baseName;
+      if ((id == null) || (count > 1))
+      {
+         name = baseName + "-" + count;
+      }
+
+      return new File(outputDir, name + "." + format.getExtension());
+   }
+
+   /*
+    * the conditions of typed blocks and record sets are in their block
+    * metadata
+    */
+   private boolean isBlockDisabled(SamXParser.BlockMetadataContext bmc)
+   {
+      return isDisabled(bmc.metadata().condition());
+   }
+
+   @Override
+   public Object visitDocument(SamXParser.DocumentContext ctx)
+   {
+      for (SamXParser.BlockContext bc : ctx.block())
+      {
+         visit(bc);
+      }
+
+      return null;
+   }
+
+   @Override
+   public Object visitTypedBlock(SamXParser.TypedBlockContext ctx)
+   {
+      if (isBlockDisabled(ctx.blockMetadata()))
+      {
+         return null;
+      }
+
+      for (SamXParser.BlockContext bc : ctx.block())
+      {
+         visit(bc);
+      }
+
+      return null;
+   }
+
+   @Override
+   public Object visitConditionalBlock(SamXParser.ConditionalBlockContext ctx)
+   {
+      if (isDisabled(ctx.condition()))
+      {
+         return null;
+      }
+
+      for (SamXParser.BlockContext bc : ctx.block())
+      {
+         visit(bc);
+      }
+
+      return null;
+   }
+
+   @Override
+   public Object visitListElement(SamXParser.ListElementContext ctx)
+   {
+      if (isDisabled(ctx))
+      {
+         return null;
+      }
+
+      for (SamXParser.BlockContext bc : ctx.block())
+      {
+         visit(bc);
+      }
+
+      return null;
+   }
+
+   @Override
+   public Object visitFlow(SamXParser.FlowContext ctx)
+   {
+      // record sets are blocks, never inside the text
+      return null;
+   }
+
+   @Override
+   public Object visitRecordSet(SamXParser.RecordSetContext ctx)
+   {
+      if (isBlockDisabled(ctx.blockMetadata()))
+      {
+         return null;
+      }
+
+      tables.add(new Table(ctx, this, makeTableFile(ctx)));
+
+      return null;
+   }
+
+   @Override
+   public Object visitIncludeFile(SamXParser.IncludeFileContext ctx)
+   {
+      if (isDisabled(ctx))
+      {
+         return null;
+      }
+
+      final String reference = ctx.reference.getText();
+      final String absolutePath = referencePaths.get(reference);
+
+      final Parser.Result includedResult = includedDocuments.get(absolutePath);
+      if (includedResult == null)
+      {
+         final IOException ioe = includedExceptions.get(absolutePath);
+         System.err.println("Cannot include " + reference + ": " + ((ioe != null) ? ioe.getMessage() : "exception missing"));
+         return null;
+      }
+
+      TableExportVisitor visitor = new TableExportVisitor(includedDocuments, includedExceptions, includedResult.referencePaths, includedResult.tokens, outputDir, format);
+      configureChildVisitor(visitor, ctx);
+      visitor.tables = tables;
+      visitor.fileNames = fileNames;
+
+      visitor.visit(includedResult.document);
+
+      return null;
+   }
+
+   @Override
+   RendererVisitor makeFragmentVisitor(Writer aWriter, FragmentIndex.Definition definition, ParserRuleContext ctx)
+   {
+      TableExportVisitor visitor = new TableExportVisitor(includedDocuments, includedExceptions, definition.referencePaths, definition.tokens, outputDir, format);
+      configureChildVisitor(visitor, ctx);
+      visitor.tables = tables;
+      visitor.fileNames = fileNames;
+      return visitor;
+   }
+}
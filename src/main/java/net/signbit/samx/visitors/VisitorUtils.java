@@ -109,6 +109,20 @@ public class VisitorUtils
    }
 
 
+   /*
+    * name of the labeled alternative of a block, e.g. TypedBlock for a
+    * TypedBlockContext
+    */
+   public static String getBlockType(ParserRuleContext ctx)
+   {
+      final String className = ctx.getClass().getSimpleName();
+      if (className.endsWith("Context"))
+      {
+         return className.substring(0, className.length() - "Context".length());
+      }
+      return className;
+   }
+
    public static int getTokenIndent(ParserRuleContext ctx, BufferedTokenStream tokenStream)
    {
       final Interval blockPosition = ctx.getSourceInterval();
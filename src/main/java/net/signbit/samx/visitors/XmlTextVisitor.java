@@ -16,12 +16,18 @@
 
 package net.signbit.samx.visitors;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
 import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import org.antlr.v4.runtime.BufferedTokenStream;
 import org.antlr.v4.runtime.ParserRuleContext;
@@ -30,7 +36,10 @@ import org.antlr.v4.runtime.misc.Interval;
 import org.antlr.v4.runtime.tree.ParseTree;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
+import net.signbit.samx.LargeStack;
+import net.signbit.samx.OutputFiles;
 import net.signbit.samx.Parser;
+import net.signbit.samx.Stats;
 import net.signbit.samx.parser.SamXLexer;
 import net.signbit.samx.parser.SamXParser;
 
@@ -50,6 +59,8 @@ public class XmlTextVisitor extends RendererVisitor
    public XmlTextVisitor(Writer aWriter, HashMap<String, Parser.Result> docDict, HashMap<String, IOException> errDict, HashMap<String, String> referenceDict, BufferedTokenStream tokenStream)
    {
       super(aWriter, docDict, errDict, referenceDict, tokenStream);
+
+      memoizeFragments = true;
    }
 
    public void skipXmlDeclaration()
@@ -80,9 +91,40 @@ public class XmlTextVisitor extends RendererVisitor
    }
 
 
+   private String getRootAttributes()
+   {
+      StringBuilder builder = new StringBuilder();
+
+      if (topElementNamespace != null)
+      {
+         builder.append(" xmlns=\"");
+         builder.append(topElementNamespace);
+         builder.append('"');
+
+         if (docBookMode)
+         {
+            builder.append(" xmlns:xl=\"http://www.w3.org/1999/xlink\"");
+         }
+
+         if (topElementVersion != null)
+         {
+            builder.append(" version=\"");
+            builder.append(topElementVersion);
+            builder.append('"');
+         }
+      }
+
+      return builder.toString();
+   }
+
    @Override
    public Exception visitDocument(SamXParser.DocumentContext ctx)
    {
+      if (chunkDirectory != null)
+      {
+         renderChunks(ctx);
+      }
+
       if (writeXmlDeclaration)
       {
          append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
@@ -94,24 +136,11 @@ public class XmlTextVisitor extends RendererVisitor
          {
             append('<');
             append(topElement);
+            append(getRootAttributes());
 
-            if (topElementNamespace != null)
+            if ((chunkFiles != null) && (! ditaMode))
             {
-               append(" xmlns=\"");
-               append(topElementNamespace);
-               append('"');
-
-               if (docBookMode)
-               {
-                  append(" xmlns:xl=\"http://www.w3.org/1999/xlink\"");
-               }
-
-               if (topElementVersion != null)
-               {
-                  append(" version=\"");
-                  append(topElementVersion);
-                  append('"');
-               }
+               append(" xmlns:xi=\"http://www.w3.org/2001/XInclude\"");
             }
 
             append('>');
@@ -120,9 +149,19 @@ public class XmlTextVisitor extends RendererVisitor
             indentLevel++;
          }
 
-         for (SamXParser.BlockContext bc : ctx.block())
+         if (parallelRendering)
          {
-            visit(bc);
+            for (RenderedBlock rb : renderBlocks(ctx.block()))
+            {
+               append(rb.output);
+            }
+         }
+         else
+         {
+            for (SamXParser.BlockContext bc : ctx.block())
+            {
+               visitTopLevelBlock(bc);
+            }
          }
 
          if (writeXmlDeclaration)
@@ -143,6 +182,348 @@ public class XmlTextVisitor extends RendererVisitor
       return exception;
    }
 
+   @Override
+   RendererVisitor makeBlockVisitor(Writer aWriter, ParserRuleContext ctx)
+   {
+      return makeStateCopy(aWriter, referencePaths, tokenStream, derivedData, ctx);
+   }
+
+   @Override
+   RendererVisitor makeFragmentVisitor(Writer aWriter, FragmentIndex.Definition definition, ParserRuleContext ctx)
+   {
+      return makeStateCopy(aWriter, definition.referencePaths, definition.tokens, definition.derivedData, ctx);
+   }
+
+   /*
+    * creates a visitor for the given document that writes at the current
+    * indentation and in the current mode
+    */
+   private XmlTextVisitor makeStateCopy(Writer aWriter, HashMap<String, String> documentReferencePaths, BufferedTokenStream documentTokens, DerivedData documentDerivedData, ParserRuleContext ctx)
+   {
+      XmlTextVisitor visitor = new XmlTextVisitor(aWriter, includedDocuments, includedExceptions, documentReferencePaths, documentTokens);
+      configureChildVisitor(visitor, ctx);
+      visitor.derivedData = documentDerivedData;
+      visitor.indentLevel = indentLevel;
+      visitor.indentParagraph = indentParagraph;
+      visitor.writeNewlines = writeNewlines;
+      visitor.writeIndent = writeIndent;
+      visitor.docBookMode = docBookMode;
+      visitor.ditaMode = ditaMode;
+      visitor.chunkFiles = chunkFiles;
+      return visitor;
+   }
+
+   /*
+    * creates the visitor for a document included from ctx
+    */
+   private XmlTextVisitor makeIncludeVisitor(Writer aWriter, Parser.Result includedResult, ParserRuleContext ctx)
+   {
+      XmlTextVisitor visitor = new XmlTextVisitor(aWriter, includedDocuments, includedExceptions, includedResult.referencePaths, includedResult.tokens);
+      configureChildVisitor(visitor, ctx);
+      visitor.skipXmlDeclaration();
+      visitor.setIndentLevel(indentLevel + 1);
+      if (docBookMode)
+      {
+         visitor.setDocBookMode();
+      }
+      if (ditaMode)
+      {
+         visitor.setDitaMode();
+      }
+      visitor.chunkFiles = chunkFiles;
+      return visitor;
+   }
+
+   /*
+    * chunking support: every typed block at the top level of the document,
+    * or of a document included at the top level, is written to a file of its
+    * own and referenced from the main output with an XInclude, or with a
+    * topic reference in DITA mode, where the main output is the map
+    *
+    * A document included more than once shares its chunks: the conditions of
+    * an include only decide whether it is rendered, and the flags and
+    * properties are the same for every include, so its blocks render the same
+    * each time (the render cache of the includes relies on this as well).
+    */
+   private File chunkDirectory = null;
+   private String chunkBaseName = null;
+
+   // file name of the chunk of each top level typed block, shared with the child visitors
+   private IdentityHashMap<ParserRuleContext, String> chunkFiles = null;
+
+   // attributes of the root element of a chunk, written on the first typed block
+   private String chunkRootAttributes = null;
+
+   private int chunkCount = 0;
+   private int chunksWritten = 0;
+   private int chunksRemoved = 0;
+
+   private final ArrayList<File> chunkOutputFiles = new ArrayList<>();
+   private File chunkListFile = null;
+
+   private static class ChunkSource
+   {
+      final SamXParser.TypedBlockContext block;
+      final XmlTextVisitor owner;
+      final File file;
+
+      ChunkSource(SamXParser.TypedBlockContext block, XmlTextVisitor owner, File file)
+      {
+         this.block = block;
+         this.owner = owner;
+         this.file = file;
+      }
+   }
+
+   /*
+    * chunks are written to directory, next to the main output; a chunk is
+    * named baseName-id.xml after the id of its block, or baseName-type-hash.xml
+    * after the type and the source text of a block without an id, so adding or
+    * removing a block does not rename the chunks of the others
+    *
+    * the chunk files are listed in baseName.chunks; the chunks listed by the
+    * previous run and not produced by this one are removed
+    */
+   public void setChunking(File directory, String baseName)
+   {
+      chunkDirectory = directory;
+      chunkBaseName = baseName;
+      chunkFiles = new IdentityHashMap<>();
+      forceWrapElement = true;
+   }
+
+   public int getChunkCount()
+   {
+      return chunkCount;
+   }
+
+   /*
+    * chunks whose file had different contents, or did not exist
+    */
+   public int getChunksWritten()
+   {
+      return chunksWritten;
+   }
+
+   /*
+    * chunks of the previous run that this one did not produce
+    */
+   public int getChunksRemoved()
+   {
+      return chunksRemoved;
+   }
+
+   /*
+    * the chunk files of this run, in document order
+    */
+   public List<File> getChunkFiles()
+   {
+      return chunkOutputFiles;
+   }
+
+   /*
+    * the file listing the chunks, or null if there is none
+    */
+   public File getChunkListFile()
+   {
+      return chunkListFile;
+   }
+
+   private static String getSourceText(ParserRuleContext ctx)
+   {
+      if ((ctx.getStart() == null) || (ctx.getStop() == null) || (ctx.getStop().getStopIndex() < ctx.getStart().getStartIndex()))
+      {
+         return ctx.getText();
+      }
+      return ctx.getStart().getInputStream().getText(Interval.of(ctx.getStart().getStartIndex(), ctx.getStop().getStopIndex()));
+   }
+
+   private String makeChunkName(SamXParser.TypedBlockContext typedBlock, XmlTextVisitor owner, HashSet<String> chunkNames)
+   {
+      String key = owner.getAttributes(typedBlock.blockMetadata().metadata()).getId();
+      if (key == null)
+      {
+         CRC32 crc = new CRC32();
+         crc.update(getSourceText(typedBlock).getBytes(StandardCharsets.UTF_8));
+         key = String.format("%s-%08x", typedBlock.NAME().getText(), crc.getValue());
+      }
+
+      // blocks with the same id or the same source are told apart by their order
+      String fileName = String.format("%s-%s.xml", chunkBaseName, key);
+      for (int ii = 2; ! chunkNames.add(fileName); ii++)
+      {
+         fileName = String.format("%s-%s-%d.xml", chunkBaseName, key, ii);
+      }
+      return fileName;
+   }
+
+   private void collectChunks(List<SamXParser.BlockContext> blocks, XmlTextVisitor owner, List<ChunkSource> chunks, HashSet<String> chunkNames)
+   {
+      for (SamXParser.BlockContext bc : blocks)
+      {
+         if (owner.isDisabled(bc))
+         {
+            continue;
+         }
+
+         if (bc instanceof SamXParser.TypedBlockContext)
+         {
+            final SamXParser.TypedBlockContext typedBlock = (SamXParser.TypedBlockContext) bc;
+
+            // a document included more than once shares its chunks
+            if (! chunkFiles.containsKey(typedBlock))
+            {
+               final String fileName = makeChunkName(typedBlock, owner, chunkNames);
+               chunkFiles.put(typedBlock, fileName);
+               chunks.add(new ChunkSource(typedBlock, owner, new File(chunkDirectory, fileName)));
+            }
+         }
+         else if (bc instanceof SamXParser.IncludeFileContext)
+         {
+            final SamXParser.IncludeFileContext includeFile = (SamXParser.IncludeFileContext) bc;
+
+            final String absolutePath = owner.referencePaths.get(includeFile.reference.getText());
+            final Parser.Result includedResult = includedDocuments.get(absolutePath);
+            if (includedResult != null)
+            {
+               collectChunks(includedResult.document.block(), owner.makeIncludeVisitor(null, includedResult, includeFile), chunks, chunkNames);
+            }
+         }
+      }
+   }
+
+   private RenderedBlock renderChunk(ChunkSource chunk, String rootAttributes)
+   {
+      StringWriter chunkWriter = new StringWriter();
+
+      XmlTextVisitor visitor = (XmlTextVisitor) chunk.owner.makeBlockVisitor(chunkWriter, chunk.block);
+      visitor.indentLevel = 0;
+      visitor.chunkFiles = null;
+      visitor.chunkRootAttributes = rootAttributes;
+
+      visitor.append("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n");
+      visitor.visitTopLevelBlock(chunk.block);
+
+      boolean written = false;
+      Exception chunkException = visitor.exception;
+      if (chunkException == null)
+      {
+         try
+         {
+            written = OutputFiles.writeIfChanged(chunk.file, chunkWriter.toString());
+         }
+         catch (IOException ioe)
+         {
+            chunkException = ioe;
+         }
+      }
+
+      // the result tells whether the chunk file was written
+      return new RenderedBlock(written, null, chunkException);
+   }
+
+   /*
+    * renders the chunks in parallel and writes the ones that changed, before
+    * the main output refers to them
+    */
+   private void renderChunks(SamXParser.DocumentContext ctx)
+   {
+      ArrayList<ChunkSource> chunks = new ArrayList<>();
+      collectChunks(ctx.block(), this, chunks, new HashSet<>());
+
+      if (! chunks.isEmpty())
+      {
+         // build the shared index before the workers need it
+         getFragmentIndex(ctx);
+      }
+
+      final String rootAttributes = getRootAttributes();
+
+      for (RenderedBlock rb : LargeStack.map(chunks, chunk -> renderChunk(chunk, rootAttributes)))
+      {
+         if (rb.exception != null)
+         {
+            exception = rb.exception;
+         }
+         if (Boolean.TRUE.equals(rb.result))
+         {
+            chunksWritten++;
+         }
+      }
+
+      chunkCount = chunks.size();
+
+      removeStaleChunks(chunks);
+
+      Stats.count("chunks", chunkCount);
+      Stats.count("chunksWritten", chunksWritten);
+   }
+
+   private void removeStaleChunks(List<ChunkSource> chunks)
+   {
+      final File listFile = new File(chunkDirectory, chunkBaseName + ".chunks");
+
+      HashSet<String> current = new HashSet<>();
+      StringBuilder list = new StringBuilder();
+      for (ChunkSource chunk : chunks)
+      {
+         chunkOutputFiles.add(chunk.file);
+         current.add(chunk.file.getName());
+         list.append(chunk.file.getName());
+         list.append('\n');
+      }
+
+      try
+      {
+         if (listFile.exists())
+         {
+            for (String fileName : Files.readAllLines(listFile.toPath(), StandardCharsets.UTF_8))
+            {
+               // only names of chunks, in case the list was edited
+               final boolean isChunkName = fileName.startsWith(chunkBaseName + "-") && fileName.endsWith(".xml") && (fileName.indexOf('/') < 0) && (fileName.indexOf(File.separatorChar) < 0);
+               if (isChunkName && (! current.contains(fileName)) && new File(chunkDirectory, fileName).delete())
+               {
+                  chunksRemoved++;
+               }
+            }
+         }
+
+         if ((! chunks.isEmpty()) || listFile.exists())
+         {
+            OutputFiles.writeIfChanged(listFile, list.toString());
+            chunkListFile = listFile;
+         }
+      }
+      catch (IOException ioe)
+      {
+         exception = ioe;
+      }
+   }
+
+   private void appendChunkReference(String fileName)
+   {
+      addIndent();
+      if (ditaMode)
+      {
+         append("<topicref href=\"");
+         append(fileName);
+         append("\"/>");
+      }
+      else
+      {
+         append("<xi:include href=\"");
+         append(fileName);
+         append("\"/>");
+      }
+      appendNewline();
+   }
+
+   @Override
+   String getRenderState()
+   {
+      return super.getRenderState() + (indentParagraph ? "+p" : "-p") + (docBookMode ? "+b" : "-b") + (ditaMode ? "+d" : "-d");
+   }
+
    @Override
    public Exception visitField(SamXParser.FieldContext ctx)
    {
@@ -236,27 +617,31 @@ public class XmlTextVisitor extends RendererVisitor
    @Override
    public Exception visitText(SamXParser.TextContext ctx)
    {
-      boolean firstToken = true;
+      final List<ParseTree> children = ctx.children;
+      final SourceText sourceText = derivedData.getSourceText();
 
-      for (ParseTree pt : ctx.children)
+      int ii = 0;
+      while (ii < children.size())
       {
-         if (! firstToken)
+         final ParseTree pt = children.get(ii);
+
+         if (ii > 0)
          {
-            final Interval pos = pt.getSourceInterval();
-            if (pos.a <= pos.b)
-            {
-               final List<Token> precedingWhitespace = tokenStream.getHiddenTokensToLeft(pos.a, SamXLexer.WHITESPACE);
-               if ((precedingWhitespace != null) && (! precedingWhitespace.isEmpty()))
-               {
-                  append(' ');
-               }
-            }
+            addSpaceIfPresentInInput(pt);
          }
 
-         //final String text = pt.getText();
-         //append(text);
-         visit(pt);
-         firstToken = false;
+         // literals need no escaping; copy runs of them from the input
+         final int runEnd = sourceText.findRun(children, ii, child -> child instanceof SamXParser.LiteralContext);
+         if (runEnd > ii)
+         {
+            appendSource(pt, children.get(runEnd - 1));
+            ii = runEnd;
+         }
+         else
+         {
+            visit(pt);
+            ii++;
+         }
       }
 
       return null;
@@ -276,10 +661,25 @@ public class XmlTextVisitor extends RendererVisitor
          return null;
       }
 
+      if (chunkFiles != null)
+      {
+         final String chunkFile = chunkFiles.get(ctx);
+         if (chunkFile != null)
+         {
+            appendChunkReference(chunkFile);
+            return null;
+         }
+      }
+
       final String typeText = ctx.NAME().getText();
       addIndent();
       append('<');
       append(typeText);
+      if (chunkRootAttributes != null)
+      {
+         append(chunkRootAttributes);
+         chunkRootAttributes = null;
+      }
       append('>');
       appendNewline();
 
@@ -562,10 +962,9 @@ public class XmlTextVisitor extends RendererVisitor
 
    private Object visitRecordSetDocBook(SamXParser.RecordSetContext ctx)
    {
-      RecordSetVisitor visitor = new RecordSetVisitor(tokenStream);
-      RecordSetVisitor.RecordSet rs = (RecordSetVisitor.RecordSet) visitor.visitRecordSet(ctx);
+      RecordSetStream rs = new RecordSetStream(ctx);
 
-      rs.computePresentation(new PlainTextVisitor(tokenStream));
+      final boolean[] isInteger = RecordSetStream.findIntegerColumns(ctx, new PlainTextVisitor(tokenStream));
 
       addIndent();
       ArrayList<String> extraClass = new ArrayList<>(1);
@@ -577,7 +976,7 @@ public class XmlTextVisitor extends RendererVisitor
 
       renderTitle(ctx);
 
-      final int columnCount = rs.header.attributes.size();
+      final int columnCount = rs.getColumnCount();
 
       addIndent();
       append(String.format("<tgroup cols=\"%d\">", columnCount));
@@ -600,11 +999,11 @@ public class XmlTextVisitor extends RendererVisitor
       append("<row>\n");
 
       indentLevel++;
-      for (String column : rs.header.attributes)
+      for (TerminalNode column : ctx.headerRow().NAME())
       {
          addIndent();
          append("<entry>");
-         append(column);
+         append(column.getText());
          append("</entry>\n");
       }
       indentLevel--;
@@ -622,23 +1021,25 @@ public class XmlTextVisitor extends RendererVisitor
       append("<tbody>\n");
       indentLevel++;
 
-      for (RecordSetVisitor.RecordDataGroup rdg : rs.groups)
+      for (RecordSetStream.Group rdg = rs.nextGroup(); rdg != null; rdg = rs.nextGroup())
       {
          addIndent();
          append("<!-- group -->\n");
 
          boolean firstRow = true;
 
-         for (RecordSetVisitor.RecordData rd : rdg.rows)
+         for (int row = rdg.firstRow; row < rdg.endRow; ++ row)
          {
+            final List<SamXParser.OptionalFlowContext> flows = rs.getRow(row).optionalFlow();
+
             addIndent();
             append("<row>\n");
 
             indentLevel++;
-            for (int ii = 0; ii < rd.flows.size(); ++ ii)
+            for (int ii = 0; ii < flows.size(); ++ ii)
             {
-               SamXParser.FlowContext fc = rd.flows.get(ii);
-               if ((fc == null) && ((ii + 1) == rd.flows.size()))
+               SamXParser.FlowContext fc = flows.get(ii).flow();
+               if ((fc == null) && ((ii + 1) == flows.size()))
                {
                   continue;
                }
@@ -650,15 +1051,15 @@ public class XmlTextVisitor extends RendererVisitor
                      addIndent();
 
                      String alignRight = "";
-                     if (rs.isInteger[ii] && (fc != null))
+                     if (isInteger[ii] && (fc != null))
                      {
                         alignRight = " align=\"right\"";
                      }
 
                      String moreRows = "";
-                     if (rdg.rows.size() > 1)
+                     if (rdg.getRowCount() > 1)
                      {
-                        moreRows = String.format(" valign=\"top\" morerows=\"%d\"", rdg.rows.size() - 1);
+                        moreRows = String.format(" valign=\"top\" morerows=\"%d\"", rdg.getRowCount() - 1);
                      }
 
                      append(String.format("<entry%s%s>", moreRows, alignRight));
@@ -675,7 +1076,7 @@ public class XmlTextVisitor extends RendererVisitor
                   if (fc != null)
                   {
                      String alignRight = "";
-                     if (rs.isInteger[ii])
+                     if (isInteger[ii])
                      {
                         alignRight = " align=\"right\"";
                      }
@@ -777,19 +1178,22 @@ public class XmlTextVisitor extends RendererVisitor
 
       if (includedResult != null)
       {
-         XmlTextVisitor visitor = new XmlTextVisitor(writer, includedDocuments, includedExceptions, includedResult.referencePaths, includedResult.tokens);
-         visitor.skipXmlDeclaration();
-         visitor.setIndentLevel(indentLevel + 1);
-         if (docBookMode)
-         {
-            visitor.setDocBookMode();
-         }
-         if (ditaMode)
+         final String key = getIncludeKey(absolutePath);
+
+         String rendered = getRenderCache().get(key);
+         if (rendered == null)
          {
-            visitor.setDitaMode();
+            StringWriter includeWriter = new StringWriter();
+
+            XmlTextVisitor visitor = makeIncludeVisitor(includeWriter, includedResult, ctx);
+
+            visitor.visit(includedResult.document);
+
+            rendered = includeWriter.toString();
+            getRenderCache().put(key, rendered);
          }
 
-         visitor.visit(includedResult.document);
+         append(rendered);
 
          StringBuilder endBuilder = new StringBuilder();
          endBuilder.append("<!-- ");
@@ -986,18 +1390,7 @@ public class XmlTextVisitor extends RendererVisitor
       append("><![CDATA[");
       appendNewline();
 
-      for (SamXParser.ExternalCodeContext ecc : ctx.externalCode())
-      {
-         final int codeLineIndent = VisitorUtils.getTokenIndent(ecc, tokenStream);
-
-         for (int ii = codeBlockIndent; ii < codeLineIndent; ++ ii)
-         {
-            append(' ');
-         }
-
-         append(ecc.EXTCODE().getText());
-         appendNewline();
-      }
+      append(derivedData.getCodeBlockLines(ctx).render(codeBlockIndent, writeNewlines ? "\n" : ""));
 
       addIndent();
       append("]]>");
@@ -1008,13 +1401,7 @@ public class XmlTextVisitor extends RendererVisitor
 
    private void renderDocBookFigure(SamXParser.InsertImageContext ctx)
    {
-      AttributeVisitor attributeVisitor = new AttributeVisitor();
-      for (SamXParser.AttributeContext ac : ctx.blockMetadata().metadata().attribute())
-      {
-         attributeVisitor.visit(ac);
-      }
-
-      final String elementId = attributeVisitor.getId();
+      final String elementId = getAttributes(ctx.blockMetadata().metadata()).getId();
       append(String.format("<figure xml:id=\"%s\">", elementId));
       appendNewline();
       indentLevel++;
@@ -1058,16 +1445,7 @@ public class XmlTextVisitor extends RendererVisitor
    private void renderFigure(SamXParser.InsertImageContext ctx)
    {
       append("<imagedata");
-      AttributeVisitor attributeVisitor = new AttributeVisitor();
-      if (ditaMode)
-      {
-         attributeVisitor.setDitaMode();
-      }
-      for (SamXParser.AttributeContext ac : ctx.blockMetadata().metadata().attribute())
-      {
-         attributeVisitor.visit(ac);
-      }
-      append(attributeVisitor.toString());
+      append(derivedData.getAttributeString(ctx.blockMetadata().metadata(), false));
 
       append(" fileref=\"");
       visitText(ctx.text());
@@ -1119,21 +1497,27 @@ public class XmlTextVisitor extends RendererVisitor
       append('<');
       append(tagType);
 
-      AttributeVisitor attributeVisitor = new AttributeVisitor(extraClass);
-      if (docBookMode)
-      {
-         attributeVisitor.setDocBookMode();
-      }
-      if (ditaMode)
+      if (extraClass != null)
       {
-         attributeVisitor.setDitaMode();
+         AttributeVisitor attributeVisitor = new AttributeVisitor(extraClass);
+         if (docBookMode)
+         {
+            attributeVisitor.setDocBookMode();
+         }
+         if (ditaMode)
+         {
+            attributeVisitor.setDitaMode();
+         }
+         for (SamXParser.AttributeContext ac : attributes)
+         {
+            attributeVisitor.visit(ac);
+         }
+         append(attributeVisitor.toString());
       }
-      for (SamXParser.AttributeContext ac : attributes)
+      else if (! attributes.isEmpty())
       {
-         attributeVisitor.visit(ac);
+         append(derivedData.getAttributeString(attributes.get(0).getParent(), docBookMode));
       }
-      final String renderedAttributes = attributeVisitor.toString();
-      append(renderedAttributes);
    }
 
    private void renderElementWithAttributes(String tagType, List<SamXParser.AttributeContext> attributes)
@@ -1156,7 +1540,7 @@ public class XmlTextVisitor extends RendererVisitor
       {
          if (blockMetadata.description != null)
          {
-            final String descriptionText = blockMetadata.description.getText();
+            final String descriptionText = derivedData.getText(blockMetadata.description);
             if (! descriptionText.isEmpty())
             {
                addIndent();
@@ -1181,12 +1565,12 @@ public class XmlTextVisitor extends RendererVisitor
        * parse
        */
 
-      final GridVisitor.GeneralGridGroup body = new GridVisitor.GeneralGridGroup(ctx.body, null);
+      final GridVisitor.GeneralGridGroup body = new GridVisitor.GeneralGridGroup(ctx.body, null, derivedData);
 
       GridVisitor.GeneralGridGroup header = null;
       if (ctx.header != null)
       {
-         header = new GridVisitor.GeneralGridGroup(ctx.header, null);
+         header = new GridVisitor.GeneralGridGroup(ctx.header, null, derivedData);
          if (header.columnCount != body.columnCount)
          {
             throw new RuntimeException(String.format("Invalid table specification: multiple table column sizes between header (%d) and body (%d)", header.columnWidths.length, body.columnWidths.length));
@@ -1196,7 +1580,7 @@ public class XmlTextVisitor extends RendererVisitor
       GridVisitor.GeneralGridGroup footer = null;
       if (ctx.footer != null)
       {
-         footer = new GridVisitor.GeneralGridGroup(ctx.footer, null);
+         footer = new GridVisitor.GeneralGridGroup(ctx.footer, null, derivedData);
          if (footer.columnCount != body.columnCount)
          {
             throw new RuntimeException(String.format("Invalid table specification: multiple table column sizes between footer (%d) and body (%d)", footer.columnWidths.length, body.columnWidths.length));
@@ -1268,15 +1652,25 @@ public class XmlTextVisitor extends RendererVisitor
          indentLevel++;
       }
 
-      int[] rowSpans = new int[gridGroup.columnCount];
+      final int rowCount = gridGroup.rows.size();
+      boolean[] enabledRows = new boolean[rowCount];
+      for (int ii = 0; ii < rowCount; ++ ii)
+      {
+         enabledRows[ii] = ! isDisabled(gridGroup.rows.get(ii).metadataContext.condition());
+      }
+
+      // the cells only span rows in DocBook mode
+      final GridLayout layout = new GridLayout(gridGroup.rows, gridGroup.columnCount, enabledRows, docBookMode);
 
-      for (GridVisitor.GeneralGridRow ggr : gridGroup.rows)
+      for (int ii = 0; ii < rowCount; ++ ii)
       {
-         if (isDisabled(ggr.metadataContext.condition()))
+         if (! enabledRows[ii])
          {
             continue;
          }
 
+         final GridVisitor.GeneralGridRow ggr = gridGroup.rows.get(ii);
+
          addIndent();
          renderElementWithAttributes(getTableRowTag(), ggr.metadataContext.attribute());
          appendNewline();
@@ -1286,18 +1680,10 @@ public class XmlTextVisitor extends RendererVisitor
          int jj = 0;
          while (jj < gridGroup.columnCount)
          {
-            if (rowSpans[jj] > 0)
+            if (layout.isCovered(ii, jj))
             {
-               rowSpans[jj]--;
                final int beginEmptySpan = jj;
-
-               jj++;
-               while ((jj < gridGroup.columnCount) && (rowSpans[jj] > 0))
-               {
-                  rowSpans[jj]--;
-
-                  jj++;
-               }
+               jj = layout.getCoveredEnd(ii, jj);
 
                final int endEmptySpan = jj;
                addIndent();
@@ -1328,10 +1714,6 @@ public class XmlTextVisitor extends RendererVisitor
                if (docBookMode)
                {
                   append(String.format(" morerows=\"%d\"", gc.rowSpan - 1));
-                  for (int kk = jj; kk < jj + gc.colSpan; ++ kk)
-                  {
-                     rowSpans[kk] = gc.rowSpan - 1;
-                  }
                }
                else
                {
@@ -1339,7 +1721,7 @@ public class XmlTextVisitor extends RendererVisitor
                }
             }
 
-            if ((gc.flow != null && (! gc.flow.getText().isEmpty())))
+            if (gc.hasContent(derivedData))
             {
                append('>');
                gc.renderContent(this);
@@ -0,0 +1,260 @@
+#include "internet.h"
+
+#include <algorithm>
+#include <chrono>
+#include <random>
+#include <vector>
+
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+
+using Clock = std::chrono::steady_clock;
+
+constexpr size_t recordCount = 1U << 16U;
+constexpr int    repeatCount = 50;
+
+// internet.h is generated with -T rfc3168 -F rfc793, for the ECN bits of the TCP header
+using IpFields  = inet::ip_header::Field;
+using TcpFields = inet::tcp_header::Field;
+
+/*
+ * Best time of repeatCount runs, in nanoseconds per record.
+ */
+template <typename F>
+double measure(F f)
+{
+   double best = 0;
+
+   for (int rr = 0; rr < repeatCount; ++rr)
+   {
+      const auto start = Clock::now();
+      f();
+      const auto end = Clock::now();
+
+      const double elapsed = std::chrono::duration<double, std::nano>(end - start).count() / recordCount;
+      if ((rr == 0) || (elapsed < best))
+      {
+         best = elapsed;
+      }
+   }
+
+   return best;
+}
+
+/*
+ * The columns are staggered, so they do not all map to the same cache sets.
+ */
+constexpr size_t columnStride = recordCount + 16U;
+
+template <typename Header>
+struct Columns
+{
+   std::vector<uint32_t> storage;
+
+   typename Header::Columns      columns;
+   typename Header::ConstColumns constColumns;
+
+   Columns() : storage(Header::fieldCount * columnStride)
+   {
+      for (size_t ff = 0; ff < Header::fieldCount; ++ff)
+      {
+         columns[ff]      = storage.data() + ff * columnStride;
+         constColumns[ff] = columns[ff];
+      }
+   }
+
+   uint32_t* operator[](typename Header::Field field)
+   {
+      return columns[static_cast<size_t>(field)];
+   }
+};
+
+/*
+ * Decodes with the generated getters, one field at a time.
+ */
+void naiveUnpack(const std::vector<inet::ip_header>& records, Columns<inet::ip_header>& columns)
+{
+   for (size_t ii = 0; ii < recordCount; ++ii)
+   {
+      const inet::ip_header& iph = records[ii];
+
+      columns[IpFields::Version][ii]  = iph.getVersion();
+      columns[IpFields::Ihl][ii]      = iph.getIhl();
+      columns[IpFields::Tos][ii]      = iph.getTos();
+      columns[IpFields::Tot_len][ii]  = iph.getTot_len();
+      columns[IpFields::Id][ii]       = iph.getId();
+      columns[IpFields::Flags][ii]    = iph.getFlags();
+      columns[IpFields::Frag_off][ii] = iph.getFrag_off();
+      columns[IpFields::Ttl][ii]      = iph.getTtl();
+      columns[IpFields::Protocol][ii] = iph.getProtocol();
+      columns[IpFields::Check][ii]    = iph.getCheck();
+      columns[IpFields::Saddr][ii]    = iph.getSaddr();
+      columns[IpFields::Daddr][ii]    = iph.getDaddr();
+      columns[IpFields::Options][ii]  = iph.getOptions();
+      columns[IpFields::Padding][ii]  = iph.getPadding();
+   }
+}
+
+/*
+ * Encodes with the generated setters, one field at a time.
+ */
+void naivePack(Columns<inet::ip_header>& columns, std::vector<inet::ip_header>& records)
+{
+   for (size_t ii = 0; ii < recordCount; ++ii)
+   {
+      inet::ip_header& iph = records[ii];
+
+      iph.setVersion(columns[IpFields::Version][ii]);
+      iph.setIhl(columns[IpFields::Ihl][ii]);
+      iph.setTos(inet::ip_tos(columns[IpFields::Tos][ii]));
+      iph.setTot_len(columns[IpFields::Tot_len][ii]);
+      iph.setId(columns[IpFields::Id][ii]);
+      iph.setFlags(inet::ip_flags(columns[IpFields::Flags][ii]));
+      iph.setFrag_off(columns[IpFields::Frag_off][ii]);
+      iph.setTtl(columns[IpFields::Ttl][ii]);
+      iph.setProtocol(columns[IpFields::Protocol][ii]);
+      iph.setCheck(columns[IpFields::Check][ii]);
+      iph.setSaddr(columns[IpFields::Saddr][ii]);
+      iph.setDaddr(columns[IpFields::Daddr][ii]);
+      iph.setOptions(columns[IpFields::Options][ii]);
+      iph.setPadding(columns[IpFields::Padding][ii]);
+   }
+}
+
+/*
+ * Decodes with the generated getters, one field at a time.
+ */
+void naiveUnpack(const std::vector<inet::tcp_header>& records, Columns<inet::tcp_header>& columns)
+{
+   for (size_t ii = 0; ii < recordCount; ++ii)
+   {
+      const inet::tcp_header& tcph = records[ii];
+
+      columns[TcpFields::Source][ii]   = tcph.getSource();
+      columns[TcpFields::Dest][ii]     = tcph.getDest();
+      columns[TcpFields::Seq][ii]      = tcph.getSeq();
+      columns[TcpFields::Ack_seq][ii]  = tcph.getAck_seq();
+      columns[TcpFields::Doff][ii]     = tcph.getDoff();
+      columns[TcpFields::Reserved][ii] = tcph.getReserved();
+      columns[TcpFields::Cwr][ii]      = tcph.getCwr();
+      columns[TcpFields::Ece][ii]      = tcph.getEce();
+      columns[TcpFields::Urg][ii]      = tcph.getUrg();
+      columns[TcpFields::Ack][ii]      = tcph.getAck();
+      columns[TcpFields::Psh][ii]      = tcph.getPsh();
+      columns[TcpFields::Rst][ii]      = tcph.getRst();
+      columns[TcpFields::Syn][ii]      = tcph.getSyn();
+      columns[TcpFields::Fin][ii]      = tcph.getFin();
+      columns[TcpFields::Window][ii]   = tcph.getWindow();
+      columns[TcpFields::Check][ii]    = tcph.getCheck();
+      columns[TcpFields::Urgent][ii]   = tcph.getUrgent();
+   }
+}
+
+/*
+ * Encodes with the generated setters, one field at a time.
+ */
+void naivePack(Columns<inet::tcp_header>& columns, std::vector<inet::tcp_header>& records)
+{
+   for (size_t ii = 0; ii < recordCount; ++ii)
+   {
+      inet::tcp_header& tcph = records[ii];
+
+      tcph.setSource(columns[TcpFields::Source][ii]);
+      tcph.setDest(columns[TcpFields::Dest][ii]);
+      tcph.setSeq(columns[TcpFields::Seq][ii]);
+      tcph.setAck_seq(columns[TcpFields::Ack_seq][ii]);
+      tcph.setDoff(columns[TcpFields::Doff][ii]);
+      tcph.setReserved(columns[TcpFields::Reserved][ii]);
+      tcph.setCwr(columns[TcpFields::Cwr][ii]);
+      tcph.setEce(columns[TcpFields::Ece][ii]);
+      tcph.setUrg(columns[TcpFields::Urg][ii]);
+      tcph.setAck(columns[TcpFields::Ack][ii]);
+      tcph.setPsh(columns[TcpFields::Psh][ii]);
+      tcph.setRst(columns[TcpFields::Rst][ii]);
+      tcph.setSyn(columns[TcpFields::Syn][ii]);
+      tcph.setFin(columns[TcpFields::Fin][ii]);
+      tcph.setWindow(columns[TcpFields::Window][ii]);
+      tcph.setCheck(columns[TcpFields::Check][ii]);
+      tcph.setUrgent(columns[TcpFields::Urgent][ii]);
+   }
+}
+
+void check(bool condition, const char* what)
+{
+   if (! condition)
+   {
+      printf("FAILED: %s\n", what);
+      exit(1);
+   }
+}
+
+/*
+ * Times the getters and setters against the bulk pack and unpack on random
+ * records, and checks that they agree.
+ */
+template <typename Header>
+void benchmark(const char* name, typename Header::Field field, const char* fieldName)
+{
+   const size_t recordSize = sizeof(Header);
+
+   std::vector<uint8_t> buffer(recordCount * recordSize);
+
+   std::mt19937 random(20200607U);
+   for (auto& byte : buffer)
+   {
+      byte = static_cast<uint8_t>(random());
+   }
+
+   std::vector<Header> records(recordCount);
+   Header::unpack(buffer.data(), recordCount, records.data());
+
+   Columns<Header> naive;
+   Columns<Header> bulk;
+
+   const double naiveUnpackTime = measure([&] { naiveUnpack(records, naive); });
+   const double bulkUnpackTime  = measure([&] { Header::unpack(buffer.data(), recordCount, bulk.columns); });
+
+   check(naive.storage == bulk.storage, "bulk unpack matches the getters");
+
+   std::vector<uint32_t> values(recordCount);
+   const double fieldUnpackTime = measure([&] { Header::unpack(buffer.data(), recordCount, field, values.data()); });
+
+   check(std::equal(values.begin(), values.end(), bulk[field]), "field unpack matches the getters");
+
+   std::vector<Header> packedRecords(recordCount);
+   const double naivePackTime = measure([&] { naivePack(naive, packedRecords); });
+
+   std::vector<uint8_t> packed(buffer.size());
+   const double bulkPackTime = measure([&] { Header::pack(bulk.constColumns, recordCount, packed.data()); });
+
+   // the fields cover every bit of the header, so both round trips are exact
+   check(packed == buffer, "bulk pack restores the buffer");
+   check(memcmp(packedRecords.data(), buffer.data(), buffer.size()) == 0, "setters restore the buffer");
+
+   for (size_t ii = 0; ii < recordCount; ++ii)
+   {
+      for (size_t ff = 0; ff < Header::fieldCount; ++ff)
+      {
+         check(records[ii].get(static_cast<typename Header::Field>(ff)) == bulk.columns[ff][ii], "table accessor matches the getters");
+      }
+   }
+
+   char fieldLabel[32];
+   snprintf(fieldLabel, sizeof(fieldLabel), "unpack, %s only:", fieldName);
+
+   printf("%zu %s records of %zu bytes, ns per record\n", recordCount, name, recordSize);
+   printf("   unpack, getters:      %6.2f\n", naiveUnpackTime);
+   printf("   unpack, bulk:         %6.2f\n", bulkUnpackTime);
+   printf("   %-22s%6.2f\n", fieldLabel, fieldUnpackTime);
+   printf("   pack, setters:        %6.2f\n", naivePackTime);
+   printf("   pack, bulk:           %6.2f\n", bulkPackTime);
+}
+
+int main()
+{
+   benchmark<inet::ip_header>("ip_header", IpFields::Saddr, "saddr");
+   benchmark<inet::tcp_header>("tcp_header", TcpFields::Seq, "seq");
+
+   return 0;
+}
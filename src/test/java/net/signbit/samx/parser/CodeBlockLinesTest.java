@@ -0,0 +1,109 @@
+package net.signbit.samx.parser;
+
+import org.junit.Test;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.visitors.CodeBlockLines;
+import net.signbit.samx.visitors.SourceText;
+import net.signbit.samx.visitors.VisitorUtils;
+import static org.junit.Assert.*;
+
+public class CodeBlockLinesTest
+{
+   private static class CodeBlock
+   {
+      final Parser.Result result;
+      final SamXParser.CodeBlockDefContext context;
+      final SourceText sourceText;
+      final CodeBlockLines lines;
+
+      CodeBlock(String code)
+      {
+         result = Parser.parseString("code:\n   ```(c)\n" + code + "\nafter:\n   Text.\n");
+         assertEquals(0, result.errorCount);
+
+         SamXParser.CodeBlockDefContext[] found = new SamXParser.CodeBlockDefContext[1];
+         new SamXParserBaseVisitor<Object>()
+         {
+            @Override
+            public Object visitCodeBlockDef(SamXParser.CodeBlockDefContext ctx)
+            {
+               found[0] = ctx;
+               return null;
+            }
+         }.visit(result.document);
+
+         context = found[0];
+         sourceText = new SourceText(result.tokens);
+         lines = new CodeBlockLines(context, result.tokens, sourceText);
+      }
+
+      String render()
+      {
+         return lines.render(lines.getMinimumIndent(), "|");
+      }
+
+      void assertIndentsMatchTokens()
+      {
+         assertEquals(context.externalCode().size(), lines.getLineCount());
+         for (int ii = 0; ii < lines.getLineCount(); ii++)
+         {
+            assertEquals(VisitorUtils.getTokenIndent(context.externalCode(ii), result.tokens), lines.getIndent(ii));
+         }
+      }
+   }
+
+   @Test
+   public void testMixedIndentation()
+   {
+      CodeBlock block = new CodeBlock("      int main()\n      {\n         return 0;\n            // deeper\n      }\n");
+
+      block.assertIndentsMatchTokens();
+      assertEquals(7, block.lines.getMinimumIndent());
+      assertEquals("int main()|{|   return 0;|      // deeper|}|", block.render());
+      assertEquals(">   int main()\n>   {\n>      return 0;\n>         // deeper\n>   }\n", block.lines.render(4, ">", "\n"));
+   }
+
+   @Test
+   public void testTabs()
+   {
+      // a tab is not indentation: leading tabs are dropped, the ones inside a line are kept
+      CodeBlock block = new CodeBlock("      int\tmain()\n      \t{\n\t         return 0;\n      }\n");
+
+      block.assertIndentsMatchTokens();
+      assertEquals("int\tmain()|{|   return 0;|}|", block.render());
+   }
+
+   @Test
+   public void testBlankLines()
+   {
+      CodeBlock block = new CodeBlock("      one\n      \n         two\n         \n      three\n");
+
+      block.assertIndentsMatchTokens();
+      assertEquals(3, block.lines.getLineCount());
+      assertEquals("one|   two|three|", block.render());
+   }
+
+   @Test
+   public void testTextOutsideBasicPlane()
+   {
+      CodeBlock block = new CodeBlock("      smile 😀\n         two\n");
+
+      // the offsets of the tokens do not index into the input, so the lines are copied
+      assertNull(block.sourceText.getText());
+      assertFalse(block.sourceText.contains(block.context.externalCode(0).EXTCODE().getSymbol()));
+
+      block.assertIndentsMatchTokens();
+      assertEquals("smile 😀|   two|", block.render());
+   }
+
+   @Test
+   public void testSourceText()
+   {
+      CodeBlock block = new CodeBlock("      one\n");
+
+      assertNotNull(block.sourceText.getText());
+      assertTrue(block.sourceText.contains(block.context.externalCode(0).EXTCODE().getSymbol()));
+      assertEquals("one|", block.render());
+   }
+}
@@ -0,0 +1,58 @@
+package net.signbit.samx.parser;
+
+import java.util.HashSet;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.visitors.ConditionVariablesVisitor;
+import static org.junit.Assert.*;
+
+public class ConditionVariablesTest
+{
+   private static ConditionVariablesVisitor collect(String resourceName)
+   {
+      Parser.Result result = Parser.parseString(TestUtils.getResourceContents(resourceName));
+      assertEquals(result.errorCount, 0);
+
+      ConditionVariablesVisitor visitor = new ConditionVariablesVisitor();
+      visitor.visit(result.document);
+
+      return visitor;
+   }
+
+   private static String getSignature(ConditionVariablesVisitor visitor, String variable, String value)
+   {
+      Properties properties = new Properties();
+      if (value != null)
+      {
+         properties.setProperty(variable, value);
+      }
+      return visitor.getSignature(properties, new HashSet<>(), new HashSet<>());
+   }
+
+   @Test
+   public void testCollectVariables()
+   {
+      ConditionVariablesVisitor visitor = collect("conditions/mixed.samx");
+
+      assertEquals(2, visitor.getVariables().size());
+      assertTrue(visitor.getVariables().get("radiation").getValues().contains("detected"));
+      assertTrue(visitor.getVariables().get("radiation").getValues().contains("absent"));
+      assertTrue(visitor.getVariables().get("missing").getValues().isEmpty());
+   }
+
+   @Test
+   public void testEquivalentVariants()
+   {
+      ConditionVariablesVisitor visitor = collect("conditions/condblock.samx");
+
+      // values not referenced by the document are indistinguishable
+      assertEquals(getSignature(visitor, "times", "average"), getSignature(visitor, "times", "mediocre"));
+      assertEquals(getSignature(visitor, "weather", "sunny"), getSignature(visitor, "weather", null));
+
+      assertNotEquals(getSignature(visitor, "times", "good"), getSignature(visitor, "times", "bad"));
+      assertNotEquals(getSignature(visitor, "times", "average"), getSignature(visitor, "times", null));
+   }
+}
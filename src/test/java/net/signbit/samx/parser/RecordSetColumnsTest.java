@@ -0,0 +1,90 @@
+package net.signbit.samx.parser;
+
+import org.junit.Test;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.visitors.NumberClassifier;
+import net.signbit.samx.visitors.PlainTextVisitor;
+import net.signbit.samx.visitors.RecordSetColumns;
+import static org.junit.Assert.*;
+
+public class RecordSetColumnsTest
+{
+   private static RecordSetColumns getFirstRecordSet(String resourceName)
+   {
+      Parser.Result result = Parser.parseString(TestUtils.getResourceContents(resourceName));
+      assertEquals(result.errorCount, 0);
+
+      SamXParser.RecordSetContext[] found = new SamXParser.RecordSetContext[1];
+      new SamXParserBaseVisitor<Object>()
+      {
+         @Override
+         public Object visitRecordSet(SamXParser.RecordSetContext ctx)
+         {
+            if (found[0] == null)
+            {
+               found[0] = ctx;
+            }
+            return null;
+         }
+      }.visit(result.document);
+
+      return new RecordSetColumns(found[0], new PlainTextVisitor(result.tokens));
+   }
+
+   @Test
+   public void testColumnTypes()
+   {
+      RecordSetColumns columns = getFirstRecordSet("recordsets/record_set.samx");
+
+      assertEquals(3, columns.getColumnCount());
+      assertEquals(3, columns.getRowCount());
+      assertEquals(RecordSetColumns.Type.INTEGER, columns.getColumn("year").getType());
+      assertEquals(RecordSetColumns.Type.STRING, columns.getColumn("type").getType());
+      assertEquals(RecordSetColumns.Type.INTEGER, columns.getColumn("quantity").getType());
+
+      assertEquals(2011, columns.getColumn("year").getInt(1));
+      assertEquals(500L, columns.getColumn("quantity").getLong(2));
+      assertEquals("SUV", columns.getColumn("type").getText(1));
+   }
+
+   @Test
+   public void testGroups()
+   {
+      RecordSetColumns columns = getFirstRecordSet("literate/internet.samx");
+
+      assertEquals(5, columns.getGroupCount());
+      assertEquals(15, columns.getRowCount());
+      assertEquals(8, columns.getGroupEnd(0));
+      assertEquals(8, columns.getGroupStart(1));
+
+      assertTrue(columns.hasSingleValue(0, 3));
+      assertFalse(columns.hasSingleValue(0, 4));
+
+      RecordSetColumns.Column offset = columns.getColumn("Offset");
+      assertEquals(3, offset.getInt(8));
+      assertFalse(offset.isPresent(9));
+
+      assertEquals(RecordSetColumns.Type.EMPTY, columns.getColumn("Name").getType());
+      assertEquals(RecordSetColumns.Type.STRING, columns.getColumn("Value").getType());
+      assertEquals(columns.getColumn("Value").getTextId(8), columns.getColumn("Value").getTextId(10));
+   }
+
+   @Test
+   public void testNumberClassifier()
+   {
+      assertEquals(NumberClassifier.Kind.INTEGER, NumberClassifier.classify("-2147483648"));
+      assertEquals(NumberClassifier.Kind.LONG, NumberClassifier.classify("2147483648"));
+      assertEquals(NumberClassifier.Kind.INTEGER, NumberClassifier.classify("0x7f"));
+      assertEquals(NumberClassifier.Kind.INTEGER, NumberClassifier.classify("017"));
+      assertEquals(NumberClassifier.Kind.DECIMAL, NumberClassifier.classify("1.5e3"));
+      assertEquals(NumberClassifier.Kind.DECIMAL, NumberClassifier.classify("99999999999999999999"));
+      assertEquals(NumberClassifier.Kind.NONE, NumberClassifier.classify("0x"));
+      assertEquals(NumberClassifier.Kind.NONE, NumberClassifier.classify("019"));
+      assertEquals(NumberClassifier.Kind.NONE, NumberClassifier.classify("0b101"));
+      assertEquals(NumberClassifier.Kind.NONE, NumberClassifier.classify("sedan"));
+
+      assertTrue(NumberClassifier.isDecodableInteger("#ff"));
+      assertFalse(NumberClassifier.isInteger("#ff"));
+   }
+}
@@ -0,0 +1,87 @@
+package net.signbit.samx.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.junit.Test;
+
+import net.signbit.samx.Parser;
+import net.signbit.samx.visitors.TableExportVisitor;
+import static org.junit.Assert.*;
+
+public class TableExportVisitorTest
+{
+   private static List<TableExportVisitor.Table> export(String resourceName, TableExportVisitor.Format format) throws IOException
+   {
+      Parser.Result result = Parser.parseString(TestUtils.getResourceContents(resourceName));
+      assertEquals(result.errorCount, 0);
+
+      final File outputDir = Files.createTempDirectory("tables").toFile();
+      outputDir.deleteOnExit();
+
+      TableExportVisitor visitor = new TableExportVisitor(result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens, outputDir, format);
+      visitor.visit(result.document);
+
+      List<TableExportVisitor.Table> tables = visitor.export();
+      for (TableExportVisitor.Table table : tables)
+      {
+         table.getFile().deleteOnExit();
+         assertNull(table.getException());
+      }
+
+      return tables;
+   }
+
+   private static String getContents(TableExportVisitor.Table table) throws IOException
+   {
+      return new String(Files.readAllBytes(table.getFile().toPath()), StandardCharsets.UTF_8);
+   }
+
+   @Test
+   public void testJsonLines() throws IOException
+   {
+      // the disabled row is left out
+      List<TableExportVisitor.Table> tables = export("conditions/conditional_rows.samx", TableExportVisitor.Format.JSONL);
+      assertEquals(1, tables.size());
+      assertEquals(2, tables.get(0).getRowCount());
+      assertEquals("{\"year\":\"2010\",\"quantity\":\"10000\",\"type\":\"sedan\"}\n{\"year\":\"2011\",\"quantity\":\"2000\",\"type\":\"SUV\"}\n", getContents(tables.get(0)));
+
+      tables = export("recordsets/quoting.samx", TableExportVisitor.Format.JSONL);
+      assertEquals("{\"name\":\"Smith, John\",\"note\":\"said \\\"hello\\\"\",\"path\":\"back\\\\slash\"}\n{\"name\":\"Doe\",\"note\":\"plain\",\"path\":\"none\"}\n", getContents(tables.get(0)));
+   }
+
+   @Test
+   public void testGroups() throws IOException
+   {
+      // the single values of a group are repeated on all its rows
+      List<TableExportVisitor.Table> tables = export("literate/internet.samx", TableExportVisitor.Format.CSV);
+      assertEquals("ip_tos.csv", tables.get(0).getFile().getName());
+      List<String> lines = Files.readAllLines(tables.get(0).getFile().toPath(), StandardCharsets.UTF_8);
+      assertEquals(16, lines.size());
+      assertEquals("_8_bit,Offset,Width,Field,Value,Name,Description", lines.get(0));
+      assertEquals("0,0,3,Precedence,0b110,,Internetwork Control", lines.get(2));
+   }
+
+   @Test
+   public void testCsvQuoting() throws IOException
+   {
+      // the fields with a comma or a quote are quoted, with the quotes doubled
+      List<TableExportVisitor.Table> tables = export("recordsets/quoting.samx", TableExportVisitor.Format.CSV);
+      assertEquals(1, tables.size());
+      assertEquals("contacts-1.csv", tables.get(0).getFile().getName());
+      assertEquals("name,note,path\n\"Smith, John\",\"said \"\"hello\"\"\",back\\slash\nDoe,plain,none\n", getContents(tables.get(0)));
+   }
+
+   @Test
+   public void testTsvEscaping() throws IOException
+   {
+      // commas and quotes are plain text; backslashes are escaped
+      List<TableExportVisitor.Table> tables = export("recordsets/quoting.samx", TableExportVisitor.Format.TSV);
+      assertEquals(1, tables.size());
+      assertEquals("contacts-1.tsv", tables.get(0).getFile().getName());
+      assertEquals("name\tnote\tpath\nSmith, John\tsaid \"hello\"\tback\\\\slash\nDoe\tplain\tnone\n", getContents(tables.get(0)));
+   }
+}
@@ -1,19 +1,49 @@
 package net.signbit.samx.parser;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
 
 import org.junit.Test;
+import org.xml.sax.SAXException;
 
+import net.signbit.samx.DoubleBufferedWriter;
 import net.signbit.samx.Parser;
+import net.signbit.samx.SchemaCache;
+import net.signbit.samx.XmlTeeChecker;
+import net.signbit.samx.visitors.BlockProfile;
 import net.signbit.samx.visitors.XmlTextVisitor;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class XmlConverterTest
 {
    private static String convert(String inputString)
+   {
+      return convert(inputString, false);
+   }
+
+   private static String convert(String inputString, boolean parallel)
    {
       Parser.Result result = Parser.parseString(inputString);
       assertEquals(result.errorCount, 0);
@@ -21,6 +51,7 @@ public class XmlConverterTest
       StringWriter writer = new StringWriter();
 
       XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.setParallelRendering(parallel);
 
       visitor.visit(result.document);
       writer.flush();
@@ -69,10 +100,333 @@ public class XmlConverterTest
       testConversion("wrap/long_lists.samx", "wrap/long_lists.xml");
    }
 
+   @Test
+   public void testParallelRendering()
+   {
+      for (String resourceName : new String[]{"lists/nested_lists.samx", "fragments/simple.samx", "fragments/forward.samx", "grids/multispan.samx"})
+      {
+         final String original = TestUtils.getResourceContents(resourceName);
+
+         assertEquals(convert(original, false), convert(original, true));
+      }
+   }
+
+   @Test
+   public void testAsyncOutput() throws IOException
+   {
+      final String original = TestUtils.getResourceContents("lists/nested_lists.samx");
+
+      Parser.Result result = Parser.parseString(original);
+
+      StringWriter stringWriter = new StringWriter();
+
+      // small buffers, so the output is handed off many times
+      DoubleBufferedWriter writer = new DoubleBufferedWriter(stringWriter, 16);
+
+      XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.visit(result.document);
+      writer.close();
+
+      assertEquals(convert(original), stringWriter.toString());
+   }
+
+   @Test
+   public void testAsyncOutputError() throws IOException
+   {
+      Parser.Result result = Parser.parseString(TestUtils.getResourceContents("lists/nested_lists.samx"));
+
+      Writer failingWriter = new Writer()
+      {
+         @Override
+         public void write(char[] cbuf, int off, int len) throws IOException
+         {
+            throw new IOException("disk full");
+         }
+
+         @Override
+         public void flush()
+         {
+         }
+
+         @Override
+         public void close()
+         {
+         }
+      };
+
+      DoubleBufferedWriter writer = new DoubleBufferedWriter(failingWriter, 16);
+
+      XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.visit(result.document);
+
+      // the error in the background thread is raised by a later write
+      assertNotNull(visitor.getException());
+      assertEquals("disk full", visitor.getException().getMessage());
+   }
+
+   @Test
+   public void testBlockProfile()
+   {
+      final String original = TestUtils.getResourceContents("lists/nested_lists.samx");
+
+      Parser.Result result = Parser.parseString(original);
+
+      StringWriter writer = new StringWriter();
+
+      BlockProfile profile = new BlockProfile();
+
+      XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.setBlockProfile(profile);
+      visitor.visit(result.document);
+
+      final String output = writer.toString();
+      assertEquals(convert(original), output);
+
+      ByteArrayOutputStream report = new ByteArrayOutputStream();
+      profile.report(new PrintStream(report), 3);
+
+      // all the output except the top element comes from the blocks
+      final int blocksStart = output.indexOf('\n', output.indexOf("<document")) + 1;
+      final int blocksEnd = output.lastIndexOf("</document>");
+
+      final String[] lines = report.toString().split("\n");
+      assertTrue(lines[0].startsWith("Block profile: 6 blocks, "));
+      assertTrue(lines[0].endsWith(", " + (blocksEnd - blocksStart) + " characters"));
+      assertTrue(report.toString().contains("UnorderedListBlock"));
+   }
+
+   private static XmlTeeChecker.Result teeCheck(String xml, File schemaFile) throws IOException, SAXException
+   {
+      StringWriter output = new StringWriter();
+
+      XmlTeeChecker checker = new XmlTeeChecker("output.xml", schemaFile);
+      Writer writer = checker.tee(output);
+      writer.write(xml);
+      writer.close();
+
+      assertEquals(xml, output.toString());
+
+      return checker.getResult();
+   }
+
+   @Test
+   public void testTeeCheck() throws IOException, SAXException
+   {
+      XmlTeeChecker.Result result = teeCheck(convert(TestUtils.getResourceContents("lists/nested_lists.samx")), null);
+      assertTrue(result.wellFormed);
+
+      result = teeCheck("<document><p>unterminated</document>", null);
+      assertFalse(result.wellFormed);
+      assertNotNull(result.fatalError);
+
+      final File schemaFile = new File("src/dist/schemas/docbook.rng.gz");
+
+      result = teeCheck(TestUtils.getResourceContents("docbook/book.xml"), schemaFile);
+      assertTrue(result.wellFormed);
+      assertTrue(result.valid);
+
+      result = teeCheck("<book xmlns=\"http://docbook.org/ns/docbook\" version=\"5.1\"><para/></book>", schemaFile);
+      assertTrue(result.wellFormed);
+      assertFalse(result.valid);
+      assertTrue(result.messages.contains("output.xml:1:"));
+
+      // the schema is compiled once per process
+      assertSame(SchemaCache.getSchema(schemaFile, null), SchemaCache.getSchema(schemaFile, null));
+   }
+
+   @Test
+   public void testTeeTransform() throws IOException, SAXException, TransformerException
+   {
+      final String xml = convert(new File("build/resources/test/docbook/main.samx"), "book", "http://docbook.org/ns/docbook", "5.1");
+      final File stylesheet = new File("build/resources/test/xslt/outline.xsl");
+
+      File resultFile = File.createTempFile("outline", ".txt");
+      resultFile.deleteOnExit();
+
+      StringWriter output = new StringWriter();
+
+      XmlTeeChecker checker = new XmlTeeChecker("book.xml", null);
+      checker.setTransform(stylesheet, resultFile);
+      Writer writer = checker.tee(output);
+      writer.write(xml);
+      writer.close();
+
+      XmlTeeChecker.Result result = checker.getResult();
+      assertTrue(result.wellFormed);
+      assertTrue(result.transformed);
+
+      // same result as transforming the serialized document
+      StringWriter expected = new StringWriter();
+      Transformer transformer = TransformerFactory.newInstance().newTransformer(new StreamSource(stylesheet));
+      transformer.transform(new StreamSource(new StringReader(xml)), new StreamResult(expected));
+
+      assertEquals(expected.toString(), new String(Files.readAllBytes(resultFile.toPath()), StandardCharsets.UTF_8));
+      assertTrue(expected.toString().contains("# begin include: chapter1.samx"));
+   }
+
+   private static XmlTextVisitor convertChunked(File inputFile, File outputDir, StringWriter writer, String... trueFlags) throws IOException
+   {
+      Parser.Result result = Parser.parse(inputFile);
+
+      XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.setTopElement("book");
+      visitor.setTopElementNamespace("http://docbook.org/ns/docbook");
+      visitor.setTopElementVersion("5.1");
+      visitor.setDocBookMode();
+      visitor.setChunking(outputDir, "book");
+      visitor.setParallelRendering(true);
+      visitor.setTrueFlags(trueFlags);
+
+      visitor.visit(result.document);
+      writer.flush();
+
+      return visitor;
+   }
+
+   private static List<String> getChunkReferences(String master)
+   {
+      ArrayList<String> references = new ArrayList<>();
+
+      Matcher matcher = Pattern.compile("<xi:include href=\"([^\"]+)\"/>").matcher(master);
+      while (matcher.find())
+      {
+         references.add(matcher.group(1));
+      }
+
+      return references;
+   }
+
+   private static void deleteOnExit(File directory)
+   {
+      directory.deleteOnExit();
+      for (File file : directory.listFiles())
+      {
+         file.deleteOnExit();
+      }
+   }
+
+   @Test
+   public void testChunks() throws IOException, SAXException
+   {
+      final File outputDir = Files.createTempDirectory("chunks").toFile();
+
+      final File inputFile = new File("build/resources/test/docbook/main.samx");
+      StringWriter writer = new StringWriter();
+
+      XmlTextVisitor visitor = convertChunked(inputFile, outputDir, writer);
+      final String master = writer.toString();
+      assertEquals(4, visitor.getChunkCount());
+      assertEquals(4, visitor.getChunksWritten());
+
+      final List<String> references = getChunkReferences(master);
+      assertEquals(4, references.size());
+      assertTrue(references.get(2), references.get(2).matches("book-chapter-[0-9a-f]{8}\\.xml"));
+
+      final File chapter = new File(outputDir, references.get(2));
+      final File chunkList = new File(outputDir, "book.chunks");
+      assertEquals(String.join("\n", references) + "\n", new String(Files.readAllBytes(chunkList.toPath()), StandardCharsets.UTF_8));
+      assertTrue(new String(Files.readAllBytes(chapter.toPath()), StandardCharsets.UTF_8).startsWith("<?xml version=\"1.0\" encoding=\"utf-8\" ?>\n<chapter xmlns=\"http://docbook.org/ns/docbook\""));
+
+      // unchanged chunks are not written again, and the chunks of the previous run that are gone are removed
+      final File stale = new File(outputDir, "book-gone.xml");
+      Files.write(stale.toPath(), "stale".getBytes(StandardCharsets.UTF_8));
+      Files.write(chunkList.toPath(), "book-gone.xml\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+      Files.write(chapter.toPath(), "stale".getBytes(StandardCharsets.UTF_8));
+      writer = new StringWriter();
+      visitor = convertChunked(inputFile, outputDir, writer);
+      deleteOnExit(outputDir);
+      assertEquals(master, writer.toString());
+      assertEquals(1, visitor.getChunksWritten());
+      assertEquals(1, visitor.getChunksRemoved());
+      assertFalse(stale.exists());
+
+      // the main document and its chunks form a valid book
+      XmlTeeChecker checker = new XmlTeeChecker(new File(outputDir, "book.xml").getPath(), new File("src/dist/schemas/docbook.rng.gz"));
+      checker.setXIncludeAware(true);
+      Writer checkWriter = checker.tee(new StringWriter());
+      checkWriter.write(master);
+      checkWriter.close();
+
+      XmlTeeChecker.Result result = checker.getResult();
+      assertTrue(result.messages, result.valid);
+   }
+
+   @Test
+   public void testChunkNames() throws IOException
+   {
+      final File inputDir = Files.createTempDirectory("chunked").toFile();
+      final File outputDir = Files.createTempDirectory("chunks").toFile();
+
+      final File inputFile = new File(inputDir, "main.samx");
+      Files.write(new File(inputDir, "part.samx").toPath(), "section: Shared\n\n   Included twice.\n".getBytes(StandardCharsets.UTF_8));
+
+      final String chapters = "chapter:(#intro)\n\n   Intro.\n\nchapter:\n\n   Body.\n\n<<<(part.samx)(?basic)\n<<<(part.samx)(?web)\n";
+      Files.write(inputFile.toPath(), chapters.getBytes(StandardCharsets.UTF_8));
+
+      StringWriter writer = new StringWriter();
+      XmlTextVisitor visitor = convertChunked(inputFile, outputDir, writer, "basic", "web");
+      deleteOnExit(inputDir);
+
+      // blocks are named by id, or by type and source; a document included twice shares its chunks
+      final List<String> references = getChunkReferences(writer.toString());
+      assertEquals(4, references.size());
+      assertEquals("book-intro.xml", references.get(0));
+      assertTrue(references.get(1), references.get(1).matches("book-chapter-[0-9a-f]{8}\\.xml"));
+      assertTrue(references.get(2), references.get(2).matches("book-section-[0-9a-f]{8}\\.xml"));
+      assertEquals(references.get(2), references.get(3));
+      assertEquals(3, visitor.getChunkCount());
+
+      // the chunk files and their list are targets of the dependency file
+      assertEquals(3, visitor.getChunkFiles().size());
+      assertEquals(new File(outputDir, references.get(0)), visitor.getChunkFiles().get(0));
+      assertEquals(new File(outputDir, "book.chunks"), visitor.getChunkListFile());
+
+      // adding a block does not rename the chunks of the others, and removing one removes its chunk
+      Files.write(inputFile.toPath(), ("preface:\n\n   New.\n\n" + chapters.replace("chapter:(#intro)\n\n   Intro.\n\n", "")).getBytes(StandardCharsets.UTF_8));
+      writer = new StringWriter();
+      visitor = convertChunked(inputFile, outputDir, writer, "basic", "web");
+      deleteOnExit(outputDir);
+
+      final List<String> newReferences = getChunkReferences(writer.toString());
+      assertEquals(references.subList(1, 4), newReferences.subList(1, 4));
+      assertEquals(1, visitor.getChunksWritten());
+      assertEquals(1, visitor.getChunksRemoved());
+      assertFalse(new File(outputDir, "book-intro.xml").exists());
+   }
+
    @Test
    public void testFragments()
    {
       testConversion("fragments/simple.samx", "fragments/simple.xml");
+
+      testConversion("fragments/forward.samx", "fragments/forward.xml");
+
+      testConversion("fragments/conditional.samx", "fragments/conditional.xml");
+   }
+
+   @Test
+   public void testFragmentsFromIncludes() throws IOException
+   {
+      // the fragment is inserted before the include that defines it, and rendered from the tokens of the included document
+      Parser.Result result = Parser.parse(new File("build/resources/test/fragments/included.samx"));
+
+      for (boolean parallel : new boolean[]{false, true})
+      {
+         StringWriter writer = new StringWriter();
+
+         XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+         visitor.setParallelRendering(parallel);
+         visitor.visit(result.document);
+         writer.flush();
+
+         assertEquals(TestUtils.getResourceContents("fragments/included.xml"), writer.toString());
+      }
+   }
+
+   @Test(expected = RuntimeException.class)
+   public void testFragmentUnderFalseCondition()
+   {
+      convert("Start.\n\n(?edition==deluxe)\n\n   ~~~(*hidden)\n\n      Hidden.\n\n>>>(*hidden)\n");
    }
 
    public void testDocBook(String inputSource, String docType, String expectedResult) throws IOException
@@ -92,6 +446,24 @@ public class XmlConverterTest
       testDocBook("build/resources/test/docbook/main.samx", "book", "docbook/book.xml");
    }
 
+   @Test
+   public void testRepeatedIncludes() throws IOException
+   {
+      Parser.Result result = Parser.parse(new File("build/resources/test/includes/repeated.samx"));
+
+      StringWriter writer = new StringWriter();
+
+      XmlTextVisitor visitor = new XmlTextVisitor(writer, result.includedDocuments, result.includedExceptions, result.referencePaths, result.tokens);
+      visitor.visit(result.document);
+      writer.flush();
+
+      assertEquals(TestUtils.getResourceContents("includes/repeated.xml"), writer.toString());
+
+      // the include at the top level is rendered once, then copied
+      assertEquals(1, visitor.getRenderCache().getHitCount());
+      assertEquals(2, visitor.getRenderCache().getMissCount());
+   }
+
    @Test
    public void testInserts()
    {
@@ -108,6 +480,12 @@ public class XmlConverterTest
       testDocBook("build/resources/test/grids/simple.samx", "article", "grids/simple-docbook.xml");
    }
 
+   @Test
+   public void testRecordSets() throws IOException
+   {
+      testDocBook("build/resources/test/recordsets/record_set.samx", "article", "recordsets/record_set-docbook.xml");
+   }
+
    @Test
    public void testGeneralGrids() throws IOException
    {
@@ -0,0 +1,28 @@
+<?xml version="1.0" encoding="utf-8"?>
+<!-- Lists the titles and paragraphs of a DocBook document, one per line -->
+<xsl:stylesheet version="1.0"
+                xmlns:xsl="http://www.w3.org/1999/XSL/Transform"
+                xmlns:db="http://docbook.org/ns/docbook">
+
+   <xsl:output method="text" encoding="utf-8"/>
+
+   <xsl:template match="db:title">
+      <xsl:text>= </xsl:text>
+      <xsl:value-of select="normalize-space(.)"/>
+      <xsl:text>&#10;</xsl:text>
+   </xsl:template>
+
+   <xsl:template match="db:para">
+      <xsl:value-of select="normalize-space(.)"/>
+      <xsl:text>&#10;</xsl:text>
+   </xsl:template>
+
+   <xsl:template match="comment()">
+      <xsl:text># </xsl:text>
+      <xsl:value-of select="normalize-space(.)"/>
+      <xsl:text>&#10;</xsl:text>
+   </xsl:template>
+
+   <xsl:template match="text()"/>
+
+</xsl:stylesheet>